@@ -0,0 +1,64 @@
+package edu.dasizeman.jftp;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.StreamHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What logging one reply at FINE costs the thread doing the protocol work, with the record
+// formatted and written right there, or handed to the AsyncLogHandler writer
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LoggingBenchmark {
+	@Param({"false", "true"})
+	public boolean async;
+
+	private Handler handler;
+
+	@Setup
+	public void setup() {
+		StreamHandler target = new StreamHandler(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, new SimplerFormatter());
+		target.setLevel(Level.ALL);
+		this.handler = this.async ? new AsyncLogHandler(AsyncLogHandler.DEFAULT_CAPACITY, target) : target;
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.handler.close();
+	}
+
+	@Benchmark
+	public void publish() {
+		this.handler.publish(new LogRecord(Level.FINE, "ControlConnection: received \"226 Transfer complete.\""));
+	}
+
+}
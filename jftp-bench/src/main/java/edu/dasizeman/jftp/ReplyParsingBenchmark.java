@@ -0,0 +1,89 @@
+package edu.dasizeman.jftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The control reply path: splitting the stream into replies (what ReadFTPResponse and the
+// reactor's control handler do), then pulling the code, message and PASV/EPSV address out
+// of them (what parseControlResponse does).  Each operation handles the whole reply mix.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyParsingBenchmark {
+	private static final String[] REPLIES = {
+		"220 Service ready for new user.",
+		"331 User name okay, need password.",
+		"230-Welcome to the server\r\n This is a multiline greeting\r\n230 User logged in, proceed.\r\n",
+		"200 Command okay.",
+		"227 Entering Passive Mode (127,0,0,1,200,10)",
+		"229 Entering Extended Passive Mode (|||51210|)",
+		"257 \"/home/user\" is current directory.",
+		"150 File status okay; about to open data connection.",
+		"226 Closing data connection; transfer complete.",
+	};
+
+	private byte[] stream;
+	private FTPReplyParser parser;
+
+	@Setup
+	public void setup() {
+		StringBuilder all = new StringBuilder();
+		for (String reply : REPLIES) {
+			all.append(reply);
+			if (!reply.endsWith(FTPConnection.CRLF)) {
+				all.append(FTPConnection.CRLF);
+			}
+		}
+		this.stream = all.toString().getBytes(StandardCharsets.UTF_8);
+		this.parser = new FTPReplyParser();
+	}
+
+	@Benchmark
+	public void splitStream(Blackhole bh) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(this.stream);
+		for (int i = 0; i < REPLIES.length; i++) {
+			bh.consume(this.parser.Read(in));
+		}
+	}
+
+	@Benchmark
+	public void splitReactorBuffer(Blackhole bh) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(this.stream);
+		String reply;
+		while ((reply = this.parser.Feed(buffer)) != null) {
+			bh.consume(reply);
+		}
+	}
+
+	@Benchmark
+	public void parseResponses(Blackhole bh) throws ProtocolException {
+		for (String reply : REPLIES) {
+			bh.consume(FTPClientManager.parseResponse(reply));
+		}
+	}
+
+	@Benchmark
+	public void parsePassiveAddresses(Blackhole bh) throws ProtocolException {
+		bh.consume(FTPClientManager.parsePASVResponse(REPLIES[4]));
+		bh.consume(FTPClientManager.parseEPSVResponse("127.0.0.1:21", REPLIES[5]));
+	}
+
+}
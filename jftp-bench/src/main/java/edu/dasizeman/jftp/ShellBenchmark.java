@@ -0,0 +1,49 @@
+package edu.dasizeman.jftp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The per-command overhead of the shell itself: parsing command flags, and formatting the
+// log record every reply and listing line turns into
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShellBenchmark {
+	private static final String[] LOGIN_ARGS = { "-u", "anonymous", "-p", "guest@example.com" };
+	private static final String[] LOGIN_FLAGS = { "-u", "-p" };
+
+	private SimplerFormatter formatter;
+	private LogRecord record;
+
+	@Setup
+	public void setup() {
+		this.formatter = new SimplerFormatter();
+		this.record = new LogRecord(Level.INFO, "-rw-r--r-- 1 user group 5000000 Jan 1 00:00 big.bin");
+	}
+
+	@Benchmark
+	public ParseMap parseFlags() {
+		return Parser.Parse(LOGIN_ARGS, LOGIN_FLAGS);
+	}
+
+	@Benchmark
+	public String formatLogRecord() {
+		return this.formatter.format(this.record);
+	}
+
+}
@@ -0,0 +1,39 @@
+package edu.dasizeman.jftp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// State machine transitions out of WAIT, for a spread of commands and replies (including a
+// code that has no FTPResponse of its own)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateDiagramBenchmark {
+	private static final FTPCommand[] COMMANDS = {
+		FTPCommand.USER, FTPCommand.PASS, FTPCommand.CWD, FTPCommand.PASV, FTPCommand.RETR, FTPCommand.LIST, FTPCommand.REST, FTPCommand.NOOP
+	};
+	private static final int[] CODES = { 331, 230, 250, 227, 150, 226, 350, 200, 550, 299 };
+
+	@Benchmark
+	public void evaluate(Blackhole bh) {
+		for (FTPCommand cmd : COMMANDS) {
+			for (int code : CODES) {
+				bh.consume(FTPClientManager.evaluate(cmd, code));
+			}
+		}
+	}
+
+}
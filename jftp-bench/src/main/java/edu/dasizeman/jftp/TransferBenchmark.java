@@ -0,0 +1,146 @@
+package edu.dasizeman.jftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.dasizeman.jftp.server.FTPServer;
+import edu.dasizeman.jftp.server.FileSystemStorage;
+import edu.dasizeman.jftp.server.MemoryStorage;
+
+// End to end transfers against the embedded server on the loopback interface: PASV, RETR or
+// LIST, the data connection, and the completion reply.  Divide fileSize by the time per
+// operation for RETR throughput; each LIST is listingLines lines.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+	@Param({"67108864"})
+	public int fileSize;
+
+	@Param({"10000"})
+	public int listingLines;
+
+	@Param({"false", "true"})
+	public boolean reactor;
+
+	// "selector", or a FTPThreads mode for a thread per session (-p serverThreads=virtual)
+	@Param({"selector"})
+	public String serverThreads;
+
+	// Memory storage is copied through the server's buffers, disk storage goes out with sendfile
+	@Param({"memory", "disk"})
+	public String storage;
+
+	private FTPServer server;
+	private File serverRoot;
+	private FTPSession session;
+	private File localFile;
+	private RandomAccessFile local;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// Per transfer log lines would be most of what gets measured otherwise
+		LogManager.getLogManager().reset();
+		FTPConnection.SetReactorEnabled(this.reactor);
+
+		byte[] file = new byte[this.fileSize];
+		new Random(1).nextBytes(file);
+		if (this.storage.equals("disk")) {
+			this.server = new FTPServer(diskStorage(file));
+		} else {
+			this.server = new FTPServer(memoryStorage(file));
+		}
+		this.server.SetSessionThreads(FTPThreads.ParseMode(this.serverThreads));
+		this.server.Start();
+
+		this.session = FTPSession.Open(this.server.GetHost());
+		this.session.Login("bench", "bench");
+		this.session.Execute(FTPCommand.TYPE, "I");
+
+		this.localFile = File.createTempFile("jftp-bench", ".dat");
+		this.local = new RandomAccessFile(this.localFile, "rw");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.session.Close();
+		this.server.close();
+		this.local.close();
+		this.localFile.delete();
+		if (this.serverRoot != null) {
+			delete(this.serverRoot);
+		}
+	}
+
+	private MemoryStorage memoryStorage(byte[] file) {
+		MemoryStorage memory = new MemoryStorage();
+		memory.Put("/payload", file);
+		byte[] small = new byte[123456];
+		for (int i = 0; i < this.listingLines; i++) {
+			memory.Put("/listing/file" + i + ".dat", small);
+		}
+		return memory;
+	}
+
+	private FileSystemStorage diskStorage(byte[] file) throws IOException {
+		this.serverRoot = Files.createTempDirectory("jftp-bench").toFile();
+		Files.write(new File(this.serverRoot, "payload").toPath(), file);
+		File listing = new File(this.serverRoot, "listing");
+		listing.mkdir();
+		for (int i = 0; i < this.listingLines; i++) {
+			// Sparse, so they don't take up any room
+			try (RandomAccessFile small = new RandomAccessFile(new File(listing, "file" + i + ".dat"), "rw")) {
+				small.setLength(123456);
+			}
+		}
+		return new FileSystemStorage(this.serverRoot.toPath());
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Benchmark
+	public long retr() throws Exception {
+		return this.session.RetrieveSegment("payload", this.local.getChannel(), 0, this.fileSize, true);
+	}
+
+	@Benchmark
+	public void list(Blackhole bh) throws Exception {
+		try (FTPListing listing = this.session.List("/listing")) {
+			while (listing.hasNext()) {
+				bh.consume(listing.next());
+			}
+		}
+	}
+
+}
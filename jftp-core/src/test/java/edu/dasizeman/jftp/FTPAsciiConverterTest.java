@@ -0,0 +1,106 @@
+package edu.dasizeman.jftp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FTPAsciiConverterTest {
+	private static final String NL = System.lineSeparator();
+
+	// Runs text through the converter chunkSize bytes at a time
+	private static String convert(FTPAsciiConverter converter, String text, int chunkSize) {
+		byte[] input = text.getBytes(StandardCharsets.US_ASCII);
+		byte[] output = new byte[FTPAsciiConverter.MaxOutput(chunkSize)];
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (int offset = 0; offset < input.length; offset += chunkSize) {
+			byte[] chunk = Arrays.copyOfRange(input, offset, Math.min(input.length, offset + chunkSize));
+			result.write(output, 0, converter.Convert(chunk, chunk.length, output));
+		}
+		result.write(output, 0, converter.Finish(output));
+		return new String(result.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	private static String fromNetwork(String text, int chunkSize) {
+		return convert(FTPAsciiConverter.FromNetwork(), text, chunkSize);
+	}
+
+	private static String toNetwork(String text, int chunkSize) {
+		return convert(FTPAsciiConverter.ToNetwork(), text, chunkSize);
+	}
+
+	@Test
+	public void fromNetwork() {
+		assertEquals("one" + NL + "two" + NL, fromNetwork("one\r\ntwo\r\n", 64));
+	}
+
+	@Test
+	public void fromNetworkKeepsLoneCRAndLF() {
+		assertEquals("a\rb\nc" + NL, fromNetwork("a\rb\nc\r\n", 64));
+		assertEquals("a\r\r" + NL, fromNetwork("a\r\r\r\n", 64));
+	}
+
+	@Test
+	public void fromNetworkCRLFSplitAcrossBuffers() {
+		String text = "one\r\ntwo\r\n\r\nbare\rcr\r\r\nend";
+		String expected = "one" + NL + "two" + NL + NL + "bare\rcr\r" + NL + "end";
+		for (int chunkSize = 1; chunkSize <= text.length(); chunkSize++) {
+			assertEquals("chunks of " + chunkSize, expected, fromNetwork(text, chunkSize));
+		}
+	}
+
+	@Test
+	public void fromNetworkCRAtTheEnd() {
+		// Held back in case an LF follows, then let out by Finish()
+		assertEquals("last\r", fromNetwork("last\r", 1));
+		assertEquals("last\r", fromNetwork("last\r", 64));
+	}
+
+	@Test
+	public void finishAtAnOffset() {
+		FTPAsciiConverter converter = FTPAsciiConverter.FromNetwork();
+		byte[] output = new byte[FTPAsciiConverter.MaxOutput(2)];
+		int count = converter.Convert(new byte[]{ 'a', '\r' }, 2, output);
+		assertEquals(1, count);
+		assertEquals(1, converter.Finish(output, count));
+		assertEquals('\r', output[1]);
+		assertEquals(0, converter.Finish(output, 0));
+	}
+
+	@Test
+	public void toNetwork() {
+		assertEquals("one\r\ntwo\r\n", toNetwork("one\ntwo\n", 64));
+	}
+
+	@Test
+	public void toNetworkLeavesCRLFAlone() {
+		assertEquals("one\r\ntwo\r\nbare\rcr", toNetwork("one\r\ntwo\nbare\rcr", 64));
+	}
+
+	@Test
+	public void toNetworkCRLFSplitAcrossBuffers() {
+		String text = "one\r\ntwo\n\nthree\r\n\r\nend";
+		String expected = "one\r\ntwo\r\n\r\nthree\r\n\r\nend";
+		for (int chunkSize = 1; chunkSize <= text.length(); chunkSize++) {
+			assertEquals("chunks of " + chunkSize, expected, toNetwork(text, chunkSize));
+		}
+	}
+
+	@Test
+	public void roundTrip() {
+		String text = "line" + NL + "another" + NL + NL;
+		assertEquals(text, fromNetwork(toNetwork(text, 3), 5));
+	}
+
+	@Test
+	public void worstCaseFitsMaxOutput() {
+		byte[] input = new byte[1000];
+		Arrays.fill(input, (byte)'\n');
+		byte[] output = new byte[FTPAsciiConverter.MaxOutput(input.length)];
+		assertEquals(2000, FTPAsciiConverter.ToNetwork().Convert(input, input.length, output));
+	}
+
+}
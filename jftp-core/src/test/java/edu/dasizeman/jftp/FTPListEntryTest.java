@@ -0,0 +1,116 @@
+package edu.dasizeman.jftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+
+import org.junit.Test;
+
+public class FTPListEntryTest {
+
+	@Test
+	public void allFacts() throws ProtocolException {
+		FTPListEntry entry = FTPListEntry.Parse("type=file;size=1024;modify=20240229123456;perm=adfrw;unique=801U1F; report.txt");
+		assertEquals("report.txt", entry.name);
+		assertTrue(entry.IsFile());
+		assertEquals(1024, entry.size);
+		assertEquals(Instant.parse("2024-02-29T12:34:56Z").toEpochMilli(), entry.modified);
+		assertEquals("adfrw", entry.perm);
+		assertEquals("801U1F", entry.unique);
+	}
+
+	@Test
+	public void factsAreCaseInsensitive() throws ProtocolException {
+		FTPListEntry entry = FTPListEntry.Parse("Type=DIR;Modify=19700101000000;Size=0; pub");
+		assertTrue(entry.IsDirectory());
+		assertSame(FTPListEntry.TYPE_DIR, entry.type);
+		assertEquals(0, entry.modified);
+		assertEquals(0, entry.size);
+	}
+
+	@Test
+	public void nameKeepsSpacesAndSemicolons() throws ProtocolException {
+		assertEquals("my file; v2.txt", FTPListEntry.Parse("type=file;size=1; my file; v2.txt").name);
+		assertEquals(" leading space", FTPListEntry.Parse("type=file;  leading space").name);
+	}
+
+	@Test
+	public void missingFacts() throws ProtocolException {
+		FTPListEntry entry = FTPListEntry.Parse("type=file; bare");
+		assertEquals(-1, entry.size);
+		assertEquals(-1, entry.modified);
+		assertNull(entry.perm);
+		assertNull(entry.unique);
+
+		// No facts at all, just the separating space
+		entry = FTPListEntry.Parse(" bare");
+		assertNull(entry.type);
+		assertFalse(entry.IsFile());
+		assertFalse(entry.IsDirectory());
+	}
+
+	@Test
+	public void unknownFactsAreSkipped() throws ProtocolException {
+		FTPListEntry entry = FTPListEntry.Parse("UNIX.mode=0644;media-type=text/plain;type=file;lang=en;size=7; notes");
+		assertTrue(entry.IsFile());
+		assertEquals(7, entry.size);
+	}
+
+	@Test
+	public void sizd() throws ProtocolException {
+		assertEquals(4096, FTPListEntry.Parse("type=dir;sizd=4096; sub").size);
+	}
+
+	@Test
+	public void fractionalTimes() throws ProtocolException {
+		long second = Instant.parse("2001-09-09T01:46:40Z").toEpochMilli();
+		assertEquals(second + 500, FTPListEntry.Parse("modify=20010909014640.5; a").modified);
+		assertEquals(second + 123, FTPListEntry.Parse("modify=20010909014640.123456; a").modified);
+		assertEquals(second + 7, FTPListEntry.Parse("modify=20010909014640.007; a").modified);
+	}
+
+	@Test
+	public void directoryReferences() throws ProtocolException {
+		assertTrue(FTPListEntry.Parse("type=cdir; .").IsDirectoryReference());
+		assertTrue(FTPListEntry.Parse("type=PDIR; ..").IsDirectoryReference());
+		assertFalse(FTPListEntry.Parse("type=dir; sub").IsDirectoryReference());
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void noName() throws ProtocolException {
+		FTPListEntry.Parse("type=file;size=1;");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void badSize() throws ProtocolException {
+		FTPListEntry.Parse("type=file;size=12k; big");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void emptySize() throws ProtocolException {
+		FTPListEntry.Parse("type=file;size=; big");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void shortTime() throws ProtocolException {
+		FTPListEntry.Parse("type=file;modify=2024; old");
+	}
+
+	@Test
+	public void mlstResponse() throws ProtocolException {
+		String reply = "250-Listing report.txt\r\n type=file;size=42; report.txt\r\n250 End";
+		FTPListEntry entry = FTPListEntry.ParseMLSTResponse(reply);
+		assertEquals("report.txt", entry.name);
+		assertEquals(42, entry.size);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void mlstResponseWithoutEntry() throws ProtocolException {
+		FTPListEntry.ParseMLSTResponse("250-Listing\r\n250 End");
+	}
+
+}
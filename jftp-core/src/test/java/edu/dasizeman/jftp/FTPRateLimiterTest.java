@@ -0,0 +1,165 @@
+package edu.dasizeman.jftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+// The timing checks leave a lot of room, so a slow machine doesn't fail them
+public class FTPRateLimiterTest {
+	private static final long MB = 1024*1024;
+
+	@After
+	public void tearDown() {
+		FTPThrottle.SetGlobalRate(0);
+		FTPThrottle.SetHostRate("example.com", 0);
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	@Test
+	public void unlimited() {
+		FTPRateLimiter limiter = new FTPRateLimiter(0);
+		assertFalse(limiter.IsLimited());
+		assertEquals(0, limiter.Take(Long.MAX_VALUE / 2));
+	}
+
+	@Test
+	public void burstIsFree() {
+		// A new bucket starts full, with 50 ms worth of bytes
+		FTPRateLimiter limiter = new FTPRateLimiter(MB);
+		assertEquals(0, limiter.Take(MB / 40));
+	}
+
+	@Test
+	public void debtIsPaidAtTheRate() {
+		FTPRateLimiter limiter = new FTPRateLimiter(MB);
+		long wait = millis(limiter.Take(MB));
+		assertTrue("waited " + wait + " ms", wait >= 900 && wait <= 1000);
+
+		// Debt adds up
+		wait = millis(limiter.Take(MB / 2));
+		assertTrue("waited " + wait + " ms", wait >= 1400 && wait <= 1500);
+	}
+
+	@Test
+	public void refillsOverTime() throws InterruptedException {
+		FTPRateLimiter limiter = new FTPRateLimiter(MB);
+		long before = millis(limiter.Take(MB));
+		Thread.sleep(300);
+		long after = millis(limiter.Take(1));
+		assertTrue(before + " ms then " + after + " ms", after <= before - 250 && after >= before - 600);
+	}
+
+	@Test
+	public void idleBucketOnlyFillsToABurst() throws InterruptedException {
+		FTPRateLimiter limiter = new FTPRateLimiter(MB);
+		Thread.sleep(300);
+
+		// 100 ms worth after 300 ms idle still leaves 50 ms to wait
+		long wait = millis(limiter.Take(MB / 10));
+		assertTrue("waited " + wait + " ms", wait >= 30 && wait <= 55);
+	}
+
+	@Test
+	public void rateChangesApplyToTheNextTake() {
+		FTPRateLimiter limiter = new FTPRateLimiter(MB);
+		limiter.SetRate(0);
+		assertEquals(0, limiter.Take(10 * MB));
+		limiter.SetRate(MB);
+		assertTrue(limiter.Take(10 * MB) > 0);
+	}
+
+	@Test
+	public void parseRate() {
+		assertEquals(500 * 1024, FTPRateLimiter.ParseRate("500K"));
+		assertEquals(20 * MB, FTPRateLimiter.ParseRate("20m"));
+		assertEquals(1536 * MB, FTPRateLimiter.ParseRate("1.5G"));
+		assertEquals(2 * MB, FTPRateLimiter.ParseRate("2MB"));
+		assertEquals(1000, FTPRateLimiter.ParseRate("1000"));
+		assertEquals(0, FTPRateLimiter.ParseRate("off"));
+		assertEquals(0, FTPRateLimiter.ParseRate("0"));
+		assertEquals(-1, FTPRateLimiter.ParseRate("fast"));
+		assertEquals(-1, FTPRateLimiter.ParseRate("-5K"));
+		assertEquals(-1, FTPRateLimiter.ParseRate("NaN"));
+	}
+
+	@Test
+	public void formatRate() {
+		assertEquals("unlimited", FTPRateLimiter.FormatRate(0));
+		assertEquals("512B/s", FTPRateLimiter.FormatRate(512));
+		assertEquals("1.5KB/s", FTPRateLimiter.FormatRate(1536));
+		assertEquals("20MB/s", FTPRateLimiter.FormatRate(20 * MB));
+	}
+
+	@Test
+	public void noThrottleWithoutLimits() {
+		assertNull(FTPThrottle.For("example.com:21", null));
+		assertNull(FTPThrottle.For("example.com:21", new FTPRateLimiter(0)));
+	}
+
+	@Test
+	public void hostLimitsIgnorePortAndCase() {
+		FTPThrottle.SetHostRate("Example.COM:21", MB);
+		assertNotNull(FTPThrottle.For("example.com:2121", null));
+		assertNull(FTPThrottle.For("example.org:21", null));
+		FTPThrottle.SetHostRate("example.com", 0);
+		assertNull(FTPThrottle.For("example.com:21", null));
+	}
+
+	@Test
+	public void chunksFollowTheSlowestLimit() {
+		FTPThrottle.SetGlobalRate(100 * MB);
+		FTPThrottle throttle = FTPThrottle.For("example.com", new FTPRateLimiter(MB));
+
+		// 50 ms at 1 MB/s
+		assertEquals(MB / 20, throttle.ChunkSize());
+
+		// Never below 16K, or above 8M
+		assertEquals(16 * 1024, FTPThrottle.For("example.com", new FTPRateLimiter(1024)).ChunkSize());
+		FTPThrottle.SetGlobalRate(0);
+		assertEquals(8 * MB, FTPThrottle.For("example.com", new FTPRateLimiter(1024 * MB)).ChunkSize());
+	}
+
+	@Test
+	public void smallDebtDoesNotSleep() throws Exception {
+		FTPThrottle throttle = FTPThrottle.For("example.com", new FTPRateLimiter(MB));
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			// 4 ms worth each, all inside the burst
+			throttle.Pace(4 * 1024);
+		}
+		assertTrue(millis(System.nanoTime() - start) < 20);
+	}
+
+	@Test
+	public void paceSleepsOffTheDebt() throws Exception {
+		FTPThrottle throttle = FTPThrottle.For("example.com", new FTPRateLimiter(MB));
+		long start = System.nanoTime();
+
+		// 250 ms worth, less the 50 ms burst
+		throttle.Pace(MB / 4);
+		long took = millis(System.nanoTime() - start);
+		assertTrue("took " + took + " ms", took >= 180 && took < 1000);
+	}
+
+	@Test
+	public void globalLimitIsShared() {
+		FTPThrottle.SetGlobalRate(MB);
+		FTPRateLimiter own = new FTPRateLimiter(0);
+		FTPThrottle first = FTPThrottle.For("a.example.com", own);
+		FTPThrottle second = FTPThrottle.For("b.example.com", own);
+		assertNotNull(first);
+		assertNotNull(second);
+		assertTrue(FTPThrottle.Describe().startsWith("global: 1MB/s"));
+	}
+
+}
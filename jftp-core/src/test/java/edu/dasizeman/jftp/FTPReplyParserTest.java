@@ -0,0 +1,164 @@
+package edu.dasizeman.jftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FTPReplyParserTest {
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// Every reply in the stream, read the blocking way
+	private static List<String> read(String stream, int count) throws IOException {
+		FTPReplyParser parser = new FTPReplyParser();
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes(stream));
+		List<String> replies = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			replies.add(parser.Read(in));
+		}
+		return replies;
+	}
+
+	// Every reply in the stream, fed to the parser chunkSize bytes at a time like the reactor does
+	private static List<String> feed(String stream, int chunkSize) throws IOException {
+		FTPReplyParser parser = new FTPReplyParser();
+		byte[] data = bytes(stream);
+		List<String> replies = new ArrayList<String>();
+		for (int offset = 0; offset < data.length; offset += chunkSize) {
+			ByteBuffer chunk = ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset));
+			String reply;
+			while ((reply = parser.Feed(chunk)) != null) {
+				replies.add(reply);
+			}
+		}
+		return replies;
+	}
+
+	@Test
+	public void singleLine() throws IOException {
+		assertEquals("200 Command okay.", read("200 Command okay.\r\n", 1).get(0));
+		assertEquals("200 Bare LF", read("200 Bare LF\n", 1).get(0));
+	}
+
+	@Test
+	public void multilineWithEmbeddedCodes() throws IOException {
+		// Only "211 " ends it: not another code, not "211-", not a code further into the line
+		String reply = "211-Features:\r\n"
+				+ "211-MDTM\r\n"
+				+ " 211 indented\r\n"
+				+ "212 Some other code\r\n"
+				+ "211End without a space\r\n"
+				+ "211 End\r\n";
+		List<String> replies = read(reply + "200 Next.\r\n", 2);
+		assertEquals(reply, replies.get(0));
+		assertEquals("200 Next.", replies.get(1));
+	}
+
+	@Test
+	public void multilineEndingInBareCode() throws IOException {
+		assertEquals("214-Help\r\n214\r\n", read("214-Help\r\n214\r\n", 1).get(0));
+	}
+
+	@Test
+	public void splitReads() throws IOException {
+		String stream = "220-Welcome\r\n220-to the\r\n220 server\r\n331 Password required.\r\n230 Logged in.\r\n";
+		List<String> expected = read(stream, 3);
+		for (int chunkSize = 1; chunkSize <= stream.length(); chunkSize++) {
+			assertEquals("chunks of " + chunkSize, expected, feed(stream, chunkSize));
+		}
+	}
+
+	@Test
+	public void incompleteReplyIsKept() throws IOException {
+		FTPReplyParser parser = new FTPReplyParser();
+		assertNull(parser.Feed(ByteBuffer.wrap(bytes("150 Opening\r"))));
+		assertEquals("150 Opening", parser.Feed(ByteBuffer.wrap(bytes("\n"))));
+	}
+
+	@Test
+	public void endlessLineFails() throws IOException {
+		byte[] line = new byte[FTPReplyParser.MAX_REPLY_LENGTH + 1];
+		Arrays.fill(line, (byte)'x');
+		FTPReplyParser parser = new FTPReplyParser();
+		try {
+			parser.Feed(ByteBuffer.wrap(line));
+			fail("buffered a reply longer than the limit");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			new FTPReplyParser().Read(new ByteArrayInputStream(line));
+			fail("buffered a reply longer than the limit");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void closedMidReplyFails() {
+		try {
+			read("211-Features:\r\n211-MDTM\r\n", 1);
+			fail("returned half a reply");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void parseCode() {
+		assertEquals(227, FTPReplyParser.ParseCode("227 Entering Passive Mode"));
+		assertEquals(-1, FTPReplyParser.ParseCode("22"));
+		assertEquals(-1, FTPReplyParser.ParseCode("2x7 Nope"));
+	}
+
+	@Test
+	public void parsePASV() {
+		assertEquals("192.168.1.2:5001", FTPReplyParser.ParsePASV("Entering Passive Mode (192,168,1,2,19,137)."));
+		assertEquals("0.0.0.0:0", FTPReplyParser.ParsePASV("(0,0,0,0,0,0)"));
+		assertEquals("255.255.255.255:65535", FTPReplyParser.ParsePASV("(255,255,255,255,255,255)"));
+	}
+
+	@Test
+	public void parsePASVRejectsBadTuples() {
+		assertNull(FTPReplyParser.ParsePASV("Entering Passive Mode"));
+		assertNull(FTPReplyParser.ParsePASV("(192,168,1,2,19)"));
+		assertNull(FTPReplyParser.ParsePASV("(192,168,1,2,19,137"));
+		assertNull(FTPReplyParser.ParsePASV("(192,168,1,2,,137)"));
+		assertNull(FTPReplyParser.ParsePASV("(256,168,1,2,19,137)"));
+		assertNull(FTPReplyParser.ParsePASV("(192,168,1,2,19,256)"));
+
+		// Enough digits to wrap an int back around into range
+		assertNull(FTPReplyParser.ParsePASV("(4294967297,168,1,2,19,137)"));
+		assertNull(FTPReplyParser.ParsePASV("(192,168,1,2,19,99999999999999999999)"));
+	}
+
+	@Test
+	public void parseEPSVPort() {
+		assertEquals(6446, FTPReplyParser.ParseEPSVPort("Entering Extended Passive Mode (|||6446|)"));
+		assertEquals(65535, FTPReplyParser.ParseEPSVPort("(!!!65535!)"));
+	}
+
+	@Test
+	public void parseEPSVPortRejectsBadPorts() {
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("Entering Extended Passive Mode"));
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("(|||65536|)"));
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("(|||4294967297|)"));
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("(||6446|)"));
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("(|||6446!)"));
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("(|||6446"));
+		assertEquals(-1, FTPReplyParser.ParseEPSVPort("(||||)"));
+	}
+
+}
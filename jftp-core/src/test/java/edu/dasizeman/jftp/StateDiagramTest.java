@@ -0,0 +1,98 @@
+package edu.dasizeman.jftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StateDiagramTest {
+
+	// What the old diagrams, a map from (FTPResponse, command) to state, gave for a reply with
+	// a known FTPResponse.  Built the way they were built, one response at a time.
+	private static Map<FTPCommand, Map<FTPResponse, FTPState>> oldDiagrams() {
+		Map<FTPResponse, FTPState> one = new EnumMap<FTPResponse, FTPState>(FTPResponse.class);
+		Map<FTPResponse, FTPState> two = new EnumMap<FTPResponse, FTPState>(FTPResponse.class);
+		Map<FTPResponse, FTPState> three = new EnumMap<FTPResponse, FTPState>(FTPResponse.class);
+		for (FTPResponse response : FTPResponse.values()) {
+			int digit = response.code / 100;
+			if (digit == 1) {
+				one.put(response, FTPState.ERROR);
+				two.put(response, FTPState.WAIT);
+				three.put(response, FTPState.ERROR);
+			} else if (digit == 2) {
+				one.put(response, FTPState.SUCCESS);
+				two.put(response, FTPState.SUCCESS);
+				three.put(response, FTPState.SUCCESS);
+			} else if (digit == 3) {
+				one.put(response, FTPState.ERROR);
+				two.put(response, FTPState.ERROR);
+
+				// Only for USER and PASS, but those are the only commands on that diagram
+				three.put(response, FTPState.BEGIN);
+			} else if (digit == 4 || digit == 5) {
+				one.put(response, FTPState.FAILURE);
+				two.put(response, FTPState.FAILURE);
+				three.put(response, FTPState.FAILURE);
+			}
+		}
+
+		Map<FTPCommand, Map<FTPResponse, FTPState>> diagrams = new EnumMap<FTPCommand, Map<FTPResponse, FTPState>>(FTPCommand.class);
+		for (FTPCommand cmd : new FTPCommand[]{ FTPCommand.CWD, FTPCommand.CDUP, FTPCommand.HELP, FTPCommand.PASV,
+				FTPCommand.QUIT, FTPCommand.PORT, FTPCommand.PWD, FTPCommand.NOOP, FTPCommand.EPSV }) {
+			diagrams.put(cmd, one);
+		}
+		diagrams.put(FTPCommand.LIST, two);
+		diagrams.put(FTPCommand.RETR, two);
+		diagrams.put(FTPCommand.USER, three);
+		diagrams.put(FTPCommand.PASS, three);
+		return diagrams;
+	}
+
+	@Test
+	public void sameAsTheOldMaps() {
+		for (Map.Entry<FTPCommand, Map<FTPResponse, FTPState>> diagram : oldDiagrams().entrySet()) {
+			FTPCommand cmd = diagram.getKey();
+			for (FTPResponse response : FTPResponse.values()) {
+				assertEquals(cmd + " " + response.code, diagram.getValue().get(response), FTPClientManager.evaluate(cmd, response.code));
+			}
+		}
+	}
+
+	@Test
+	public void unknownCodesGoByClass() {
+		assertEquals(FTPState.SUCCESS, FTPClientManager.evaluate(FTPCommand.PWD, 299));
+		assertEquals(FTPState.WAIT, FTPClientManager.evaluate(FTPCommand.RETR, 199));
+		assertEquals(FTPState.FAILURE, FTPClientManager.evaluate(FTPCommand.CWD, 599));
+		assertEquals(FTPState.BEGIN, FTPClientManager.evaluate(FTPCommand.USER, 399));
+	}
+
+	@Test
+	public void restartIsNotAnError() {
+		assertEquals(FTPState.SUCCESS, FTPClientManager.evaluate(FTPCommand.REST, 350));
+		assertEquals(FTPState.ERROR, FTPClientManager.evaluate(FTPCommand.CWD, 350));
+	}
+
+	@Test
+	public void codesOutsideTheRange() {
+		StateDiagram diagram = new StateDiagram();
+		assertEquals(FTPState.FAILURE, diagram.Get(99, FTPCommand.NOOP));
+		assertEquals(FTPState.FAILURE, diagram.Get(600, FTPCommand.NOOP));
+		assertEquals(FTPState.FAILURE, diagram.Get(-1, FTPCommand.NOOP));
+	}
+
+	@Test
+	public void singleCodeOverridesItsClass() {
+		StateDiagram diagram = new StateDiagram();
+		diagram.PutClass(3, FTPCommand.NOOP, FTPState.ERROR);
+		diagram.Put(331, FTPCommand.NOOP, FTPState.BEGIN);
+		assertEquals(FTPState.ERROR, diagram.Get(300, FTPCommand.NOOP));
+		assertEquals(FTPState.BEGIN, diagram.Get(331, FTPCommand.NOOP));
+		assertEquals(FTPState.ERROR, diagram.Get(399, FTPCommand.NOOP));
+		assertNull(diagram.Get(331, FTPCommand.PWD));
+		assertNull(diagram.Get(200, FTPCommand.NOOP));
+	}
+
+}
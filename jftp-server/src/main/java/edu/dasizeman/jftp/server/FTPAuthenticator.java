@@ -0,0 +1,50 @@
+package edu.dasizeman.jftp.server;
+
+// Decides who gets to log in, and what they can do once they have
+public interface FTPAuthenticator {
+
+	// Whether USER alone is enough, without a PASS
+	public boolean NeedsPassword(String user);
+
+	public boolean Login(String user, String password);
+
+	// Whether a logged in user may create and change files (STOR, APPE)
+	public boolean CanWrite(String user);
+
+	// Lets everyone in, with any password, to read
+	public static final FTPAuthenticator ANONYMOUS = new FTPAuthenticator() {
+		@Override
+		public boolean NeedsPassword(String user) {
+			return true;
+		}
+
+		@Override
+		public boolean Login(String user, String password) {
+			return true;
+		}
+
+		@Override
+		public boolean CanWrite(String user) {
+			return false;
+		}
+	};
+
+	// Lets everyone in to read and write.  Only for servers nobody else can reach.
+	public static final FTPAuthenticator ANONYMOUS_WRITABLE = new FTPAuthenticator() {
+		@Override
+		public boolean NeedsPassword(String user) {
+			return true;
+		}
+
+		@Override
+		public boolean Login(String user, String password) {
+			return true;
+		}
+
+		@Override
+		public boolean CanWrite(String user) {
+			return true;
+		}
+	};
+
+}
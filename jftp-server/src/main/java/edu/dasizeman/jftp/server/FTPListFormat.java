@@ -0,0 +1,59 @@
+package edu.dasizeman.jftp.server;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import edu.dasizeman.jftp.FTPListEntry;
+
+// Turns storage entries into listing lines: "ls -l" style for LIST, and RFC 3659 facts for
+// MLSD and MLST.  Times are always UTC.
+final class FTPListFormat {
+	private static final DateTimeFormatter MACHINE_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter RECENT_TIME = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.US).withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter OLD_TIME = DateTimeFormatter.ofPattern("MMM dd  yyyy", Locale.US).withZone(ZoneOffset.UTC);
+
+	// Like ls, files older than this show the year instead of the time
+	private static final long RECENT_MILLIS = 183L * 24 * 3600 * 1000;
+
+	private FTPListFormat() {
+	}
+
+	static String Unix(FTPListEntry entry, long now) {
+		long modified = (entry.modified < 0) ? now : entry.modified;
+		DateTimeFormatter time = (Math.abs(now - modified) < RECENT_MILLIS) ? RECENT_TIME : OLD_TIME;
+
+		StringBuilder line = new StringBuilder(64 + entry.name.length());
+		line.append(entry.IsDirectory() ? "drwxr-xr-x" : "-rw-r--r--").append(" 1 ftp ftp ");
+		String size = Long.toString(Math.max(0, entry.size));
+		for (int i = size.length(); i < 12; i++) {
+			line.append(' ');
+		}
+		line.append(size).append(' ');
+		time.formatTo(Instant.ofEpochMilli(modified), line);
+		return line.append(' ').append(entry.name).toString();
+	}
+
+	// The facts we know about, then the name.  MLST gives the whole path as the name.
+	static String Machine(FTPListEntry entry, String name) {
+		StringBuilder line = new StringBuilder(80 + name.length());
+		line.append("type=").append(entry.type).append(';');
+		if (entry.size >= 0) {
+			line.append("size=").append(entry.size).append(';');
+		}
+		if (entry.modified >= 0) {
+			line.append("modify=");
+			MACHINE_TIME.formatTo(Instant.ofEpochMilli(entry.modified), line);
+			line.append(';');
+		}
+		if (entry.perm != null) {
+			line.append("perm=").append(entry.perm).append(';');
+		}
+		if (entry.unique != null) {
+			line.append("unique=").append(entry.unique).append(';');
+		}
+		return line.append(' ').append(name).toString();
+	}
+
+}
@@ -0,0 +1,147 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import edu.dasizeman.jftp.FTPResponse;
+
+// A session driven entirely by callbacks on the server's selector thread.  The reply queue is
+// bounded too: a client that sends commands without reading the replies stops being read
+// from until it catches up.
+final class FTPSelectorSession extends FTPServerSession implements FTPServer.Handler {
+	private static final int MAX_PENDING_REPLIES = 64*1024;
+
+	private SelectionKey controlKey, dataKey;
+
+	// Replies wait here until the control connection can take them
+	private final ArrayDeque<ByteBuffer> replies;
+	private int pendingReplyBytes;
+
+	FTPSelectorSession(FTPServer server, SocketChannel control) {
+		super(server, control);
+		this.replies = new ArrayDeque<ByteBuffer>();
+	}
+
+	void Start() throws IOException {
+		this.control.configureBlocking(false);
+		this.controlKey = this.control.register(this.server.getSelector(), 0, this);
+		reply(FTPResponse.NEW_USER_SERVICE_RDY, "JFTP server ready.");
+		updateInterest();
+	}
+
+	@Override
+	public void Ready(SelectionKey key) throws IOException {
+		if (key.isWritable()) {
+			flushReplies();
+			if (this.closing && this.replies.isEmpty()) {
+				Close();
+				return;
+			}
+		}
+		if (key.isValid() && key.isReadable()) {
+			if (this.control.read(this.commandBuffer) < 0) {
+				Close();
+				return;
+			}
+			processCommands();
+		}
+		updateInterest();
+	}
+
+	// Reads want room for replies and no transfer in the way, writes want queued replies
+	private void updateInterest() {
+		if (this.closed) {
+			return;
+		}
+		int ops = 0;
+		if (!this.replies.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		if (!this.closing && this.transfer == null && this.pendingReplyBytes < MAX_PENDING_REPLIES) {
+			ops |= SelectionKey.OP_READ;
+		}
+		this.controlKey.interestOps(ops);
+	}
+
+	@Override
+	protected void queue(String text) {
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		this.replies.add(buffer);
+		this.pendingReplyBytes += buffer.remaining();
+	}
+
+	private void flushReplies() throws IOException {
+		ByteBuffer head;
+		while ((head = this.replies.peek()) != null) {
+			this.control.write(head);
+			if (head.hasRemaining()) {
+				return;
+			}
+			this.replies.poll();
+			this.pendingReplyBytes -= head.capacity();
+		}
+	}
+
+	@Override
+	protected void passiveOpened() throws IOException {
+		this.passive.configureBlocking(false);
+		this.passive.register(this.server.getSelector(), SelectionKey.OP_ACCEPT, new PassiveHandler());
+	}
+
+	@Override
+	protected void transferStarted() {
+		if (this.data != null) {
+			this.dataKey.interestOps(this.transfer.Interest());
+		}
+	}
+
+	// Takes the one connection a passive listener is for
+	private class PassiveHandler implements FTPServer.Handler {
+		@Override
+		public void Ready(SelectionKey key) throws IOException {
+			SocketChannel channel = ((ServerSocketChannel)key.channel()).accept();
+			if (channel == null) {
+				return;
+			}
+			if (!fromClient(channel)) {
+				// Keep listening for the real client
+				closeQuietly(channel);
+				return;
+			}
+			closeQuietly(passive);
+			passive = null;
+
+			data = channel;
+			data.configureBlocking(false);
+			data.socket().setTcpNoDelay(true);
+			dataKey = data.register(server.getSelector(), (transfer == null) ? 0 : transfer.Interest(), new DataHandler());
+		}
+
+		@Override
+		public void Close() {
+			FTPSelectorSession.this.Close();
+		}
+	}
+
+	private class DataHandler implements FTPServer.Handler {
+		@Override
+		public void Ready(SelectionKey key) throws IOException {
+			if (transfer != null && !stepTransfer()) {
+				// Carry on with anything that was sent while the transfer ran
+				processCommands();
+				updateInterest();
+			}
+		}
+
+		@Override
+		public void Close() {
+			FTPSelectorSession.this.Close();
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.dasizeman.jftp.FTPThreads;
+
+// A small FTP server that runs every session on one selector thread: accepting, reading
+// commands, writing replies, and moving data all happen without blocking, so a slow client
+// only costs the buffers of its own session.  Files come from a pluggable FTPStorage, which
+// is called on the selector thread and should be quick about it (the disk and memory ones are).
+// With SetSessionThreads(), sessions instead run as blocking code on a thread each (virtual
+// threads on Java 21), and the selector thread only accepts.
+public class FTPServer implements Runnable, AutoCloseable {
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	// Everything registered with the selector has one of these attached
+	interface Handler {
+		// Called on the selector thread when the key has something ready
+		public void Ready(SelectionKey key) throws IOException;
+
+		// Called on the selector thread when the handler failed, or the server is closing
+		public void Close();
+	}
+
+	private final FTPStorage storage;
+	private final FTPAuthenticator authenticator;
+	private final Selector selector;
+	private final ServerSocketChannel acceptor;
+	private Thread thread;
+	private volatile boolean running;
+
+	// Null when sessions run on the selector thread
+	private FTPThreads.Mode sessionThreads;
+	private final Set<FTPThreadSession> threadSessions;
+
+	// Binds to address right away, so the port is known before Start()
+	public FTPServer(InetSocketAddress address, FTPStorage storage, FTPAuthenticator authenticator) throws IOException {
+		this.storage = storage;
+		this.authenticator = authenticator;
+		this.running = true;
+		this.threadSessions = Collections.newSetFromMap(new ConcurrentHashMap<FTPThreadSession, Boolean>());
+		this.selector = Selector.open();
+		this.acceptor = ServerSocketChannel.open();
+		this.acceptor.bind(address);
+		this.acceptor.configureBlocking(false);
+		this.acceptor.register(this.selector, SelectionKey.OP_ACCEPT, new Handler() {
+			@Override
+			public void Ready(SelectionKey key) throws IOException {
+				accept();
+			}
+
+			@Override
+			public void Close() {
+				// The acceptor is closed with the server
+			}
+		});
+	}
+
+	// An anonymous, writable server on the loopback interface and a free port, for tests and
+	// benchmarks
+	public FTPServer(FTPStorage storage) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), storage, FTPAuthenticator.ANONYMOUS_WRITABLE);
+	}
+
+	// Runs the server on its own thread.  Calling run() instead serves on the caller's thread.
+	public synchronized void Start() {
+		if (this.thread != null) {
+			return;
+		}
+		this.thread = new Thread(this, "FTPServer:" + GetPort());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	// Runs each new session on its own thread of the given kind, or on the selector thread
+	// for null.  Returns the mode actually used, since virtual threads need Java 21.
+	public synchronized FTPThreads.Mode SetSessionThreads(FTPThreads.Mode mode) {
+		this.sessionThreads = (mode == null) ? null : FTPThreads.Resolve(mode);
+		return this.sessionThreads;
+	}
+
+	public int GetPort() {
+		return this.acceptor.socket().getLocalPort();
+	}
+
+	// "host:port" the way the client takes it
+	public String GetHost() {
+		InetAddress address = this.acceptor.socket().getInetAddress();
+		if (address == null || address.isAnyLocalAddress()) {
+			address = InetAddress.getLoopbackAddress();
+		}
+		return address.getHostAddress() + ":" + GetPort();
+	}
+
+	FTPStorage getStorage() {
+		return this.storage;
+	}
+
+	FTPAuthenticator getAuthenticator() {
+		return this.authenticator;
+	}
+
+	Selector getSelector() {
+		return this.selector;
+	}
+
+	// Stops the selector thread and drops every session.  For servers started with Start().
+	@Override
+	public void close() throws IOException {
+		Thread serverThread;
+		synchronized (this) {
+			this.running = false;
+			serverThread = this.thread;
+		}
+		if (serverThread == null) {
+			closeAll();
+			return;
+		}
+		this.selector.wakeup();
+		try {
+			serverThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.log(Level.INFO, "FTPServer listening on " + GetHost());
+		while (this.running) {
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "FTPServer: select failed: " + e.getMessage());
+				break;
+			}
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				handle(key);
+			}
+		}
+		closeAll();
+	}
+
+	private void handle(SelectionKey key) {
+		Handler handler = (Handler)key.attachment();
+		try {
+			if (key.isValid()) {
+				handler.Ready(key);
+			}
+		} catch (CancelledKeyException e) {
+			// The handler closed its own channel, which is fine
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.FINE, "FTPServer: " + e.getClass().getName() + " " + e.getMessage());
+			handler.Close();
+		}
+	}
+
+	private void accept() throws IOException {
+		FTPThreads.Mode threads;
+		synchronized (this) {
+			threads = this.sessionThreads;
+		}
+
+		SocketChannel channel;
+		while ((channel = this.acceptor.accept()) != null) {
+			channel.socket().setTcpNoDelay(true);
+			if (threads == null) {
+				new FTPSelectorSession(this, channel).Start();
+				continue;
+			}
+			FTPThreadSession session = new FTPThreadSession(this, channel);
+			this.threadSessions.add(session);
+			FTPThreads.Start(threads, session, null);
+		}
+	}
+
+	void sessionEnded(FTPThreadSession session) {
+		this.threadSessions.remove(session);
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+			((Handler)key.attachment()).Close();
+		}
+		for (FTPThreadSession session : this.threadSessions) {
+			session.Close();
+		}
+		try {
+			this.acceptor.close();
+			this.selector.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+		}
+		logger.log(Level.INFO, "FTPServer on port " + GetPort() + " closed");
+	}
+
+}
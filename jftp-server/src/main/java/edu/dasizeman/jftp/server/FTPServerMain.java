@@ -0,0 +1,64 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+import edu.dasizeman.jftp.FTPThreads;
+import edu.dasizeman.jftp.ParseMap;
+import edu.dasizeman.jftp.Parser;
+
+public class FTPServerMain {
+
+	public static void main(String[] args) {
+		String[] requiredArgs = new String[]{"-root"};
+		String[] optionalArgs = new String[]{"-port", "-bind", "-threads", "-writable"};
+		ParseMap parsedArgs = Parser.Parse(args, requiredArgs, optionalArgs);
+
+		if (parsedArgs == null) {
+			System.out.println("Must specify the directory to serve with -root");
+			System.out.println("Use -port <port> to listen somewhere other than 2121");
+			System.out.println("Use -bind <address> to listen on one address only");
+			System.out.println("Use -threads <platform|pooled|virtual> to run each session on a thread of its own");
+			System.out.println("Use -writable to let clients upload (anyone can log in, so only do this on a network you trust)");
+			return;
+		}
+
+		int port = 2121;
+		if (parsedArgs.containsKey("-port")) {
+			try {
+				port = Integer.parseInt(parsedArgs.get("-port"));
+			} catch (NumberFormatException e) {
+				System.out.println("-port must be a number");
+				return;
+			}
+		}
+		FTPThreads.Mode threads = null;
+		if (parsedArgs.containsKey("-threads")) {
+			threads = FTPThreads.ParseMode(parsedArgs.get("-threads"));
+			if (threads == null) {
+				System.out.println("-threads must be one of platform, pooled or virtual");
+				return;
+			}
+		}
+
+		InetSocketAddress address = parsedArgs.containsKey("-bind")
+				? new InetSocketAddress(parsedArgs.get("-bind"), port) : new InetSocketAddress(port);
+
+		try {
+			// Anyone can log in, so uploads have to be asked for
+			boolean writable = parsedArgs.containsKey("-writable");
+			FTPServer server = new FTPServer(address, new FileSystemStorage(Paths.get(parsedArgs.get("-root"))),
+					writable ? FTPAuthenticator.ANONYMOUS_WRITABLE : FTPAuthenticator.ANONYMOUS);
+			threads = server.SetSessionThreads(threads);
+			System.out.println("Serving " + parsedArgs.get("-root") + " on port " + server.GetPort()
+					+ ((threads == null) ? "" : " with a " + threads.name().toLowerCase(Locale.ROOT) + " thread per session")
+					+ (writable ? ", uploads allowed" : ", read only"));
+			server.run();
+		} catch (IOException e) {
+			System.out.println("Could not start server: " + e.getMessage());
+		}
+	}
+
+}
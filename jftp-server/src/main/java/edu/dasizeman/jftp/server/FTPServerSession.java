@@ -0,0 +1,958 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.dasizeman.jftp.FTPAsciiConverter;
+import edu.dasizeman.jftp.FTPCommand;
+import edu.dasizeman.jftp.FTPConnection;
+import edu.dasizeman.jftp.FTPListEntry;
+import edu.dasizeman.jftp.FTPResponse;
+import edu.dasizeman.jftp.FTPSession;
+
+// One client of the server: the protocol state and what every command does.  How the bytes
+// move is up to the subclass, either callbacks on the server's selector thread
+// (FTPSelectorSession) or plain blocking code on a thread of its own (FTPThreadSession).  The
+// command buffer is bounded, so a command line that doesn't fit gets a 500.  Commands are
+// not read while a transfer is running, so there is only ever one data connection per session.
+abstract class FTPServerSession {
+	private static final int MAX_COMMAND_LENGTH = 4096;
+	private static final int DATA_BUFFER_SIZE = 64*1024;
+
+	// How much we ask FileChannel.transferTo to send per call
+	private static final long TRANSFER_CHUNK_SIZE = 8*1024*1024;
+
+	// Buffers moved per wakeup before the other sessions get a turn
+	private static final int BUFFERS_PER_WAKEUP = 16;
+
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	protected final FTPServer server;
+	protected final FTPStorage storage;
+	protected final SocketChannel control;
+	protected boolean closing;
+	protected volatile boolean closed;
+
+	// Commands are read into here
+	protected final ByteBuffer commandBuffer;
+	private boolean discarding;
+
+	private String user;
+	private boolean loggedIn;
+	private String directory;
+	private long restartOffset;
+
+	// MODE Z, and the level we deflate at (OPTS MODE Z LEVEL)
+	private boolean compressed;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	// TYPE A: files are sent and stored with their line endings converted
+	private boolean ascii;
+
+	// The passive listener, the data connection once the client connects to it, and what
+	// it is being used for
+	protected ServerSocketChannel passive;
+	protected SocketChannel data;
+	protected Transfer transfer;
+
+	FTPServerSession(FTPServer server, SocketChannel control) {
+		this.server = server;
+		this.storage = server.getStorage();
+		this.control = control;
+		this.commandBuffer = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+		this.directory = "/";
+	}
+
+	// Sends reply text, which may be several lines
+	protected abstract void queue(String text);
+
+	// Called once a passive listener is open and bound
+	protected abstract void passiveOpened() throws IOException;
+
+	// Called after the 150 reply, to get the transfer going
+	protected abstract void transferStarted();
+
+	public void Close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		closeTransfer();
+		closeQuietly(this.control);
+	}
+
+	/* Control connection */
+
+	// Runs the complete command lines in the buffer, which is left ready for more reading
+	protected void processCommands() {
+		this.commandBuffer.flip();
+		byte[] bytes = this.commandBuffer.array();
+		boolean incomplete = false;
+		while (this.transfer == null && !this.closing) {
+			int start = this.commandBuffer.position();
+			int end = start;
+			while (end < this.commandBuffer.limit() && bytes[end] != '\n') {
+				end++;
+			}
+			if (end == this.commandBuffer.limit()) {
+				incomplete = true;
+				break;
+			}
+			this.commandBuffer.position(end + 1);
+
+			if (this.discarding) {
+				// The end of a line that was too long
+				this.discarding = false;
+				continue;
+			}
+			if (end > start && bytes[end - 1] == '\r') {
+				end--;
+			}
+			execute(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+		}
+		this.commandBuffer.compact();
+
+		// A full buffer without a line in it can only be a line that's too long
+		if (incomplete && !this.commandBuffer.hasRemaining()) {
+			this.commandBuffer.clear();
+			if (!this.discarding) {
+				this.discarding = true;
+				reply(FTPResponse.UNRECOGNIZED_CMD, "Command line too long.");
+			}
+		}
+	}
+
+	protected void reply(FTPResponse response) {
+		reply(response.code, response.message);
+	}
+
+	protected void reply(FTPResponse response, String message) {
+		reply(response.code, message);
+	}
+
+	protected void reply(int code, String message) {
+		queue(code + " " + message + FTPConnection.CRLF);
+	}
+
+	/* Commands */
+
+	private void execute(String line) {
+		int space = line.indexOf(' ');
+		String verb = ((space < 0) ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+		String argument = (space < 0) ? "" : line.substring(space + 1).trim();
+		logger.log(Level.FINE, () -> "FTPServer: " + (verb.equals("PASS") ? "PASS ****" : line));
+
+		FTPCommand cmd;
+		try {
+			cmd = FTPCommand.valueOf(verb);
+		} catch (IllegalArgumentException e) {
+			reply(FTPResponse.UNIMPLEMENTED_CMD);
+			return;
+		}
+
+		if (!this.loggedIn) {
+			switch (cmd) {
+			case USER:
+			case PASS:
+			case QUIT:
+			case HELP:
+			case NOOP:
+				break;
+			default:
+				reply(FTPResponse.NOT_LOGGED_IN);
+				return;
+			}
+		}
+
+		// A restart offset only applies to the command right after REST
+		long offset = this.restartOffset;
+		this.restartOffset = 0;
+
+		try {
+			switch (cmd) {
+			case USER:
+				user(argument);
+				break;
+			case PASS:
+				pass(argument);
+				break;
+			case CWD:
+				changeDirectory(argument);
+				break;
+			case CDUP:
+				changeDirectory("..");
+				break;
+			case PWD:
+				reply(FTPResponse.PATH_CREATED, "\"" + this.directory.replace("\"", "\"\"") + "\" is the current directory.");
+				break;
+			case QUIT:
+				reply(FTPResponse.CLOSING_CTRL_CONN, "Goodbye.");
+				this.closing = true;
+				break;
+			case PASV:
+			case EPSV:
+				openPassive(cmd, argument);
+				break;
+			case TYPE:
+				type(argument);
+				break;
+			case MODE:
+				mode(argument);
+				break;
+			case OPTS:
+				options(argument);
+				break;
+			case NOOP:
+				reply(FTPResponse.COMMAND_OK);
+				break;
+			case SIZE:
+				size(argument);
+				break;
+			case REST:
+				restart(argument);
+				break;
+			case RETR:
+				retrieve(argument, offset);
+				break;
+			case STOR:
+				store(argument, false);
+				break;
+			case APPE:
+				store(argument, true);
+				break;
+			case LIST:
+				list(argument, false);
+				break;
+			case MLSD:
+				list(argument, true);
+				break;
+			case MLST:
+				machineStat(argument);
+				break;
+			case HELP:
+				help();
+				break;
+			default:
+				// Active mode (PORT, EPRT) would mean connecting out to the client
+				reply(FTPResponse.UNIMPLEMENTED_CMD);
+				break;
+			}
+		} catch (IOException e) {
+			reply(FTPResponse.FILE_UNAVAIL, e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+
+	private void user(String name) {
+		this.user = name;
+		this.loggedIn = false;
+		FTPAuthenticator authenticator = this.server.getAuthenticator();
+		if (authenticator.NeedsPassword(name)) {
+			reply(FTPResponse.NEED_PASS);
+		} else {
+			login(name, null);
+		}
+	}
+
+	private void pass(String password) {
+		if (this.user == null) {
+			reply(FTPResponse.BAD_CMD_SEQUENCE, "Send USER first.");
+			return;
+		}
+		login(this.user, password);
+	}
+
+	private void login(String name, String password) {
+		if (this.server.getAuthenticator().Login(name, password)) {
+			this.loggedIn = true;
+			this.directory = "/";
+			reply(FTPResponse.LOGIN_OK);
+		} else {
+			this.user = null;
+			reply(FTPResponse.NOT_LOGGED_IN, "Login incorrect.");
+		}
+	}
+
+	private void changeDirectory(String argument) throws IOException {
+		String path = resolve(argument);
+		FTPListEntry entry = this.storage.Stat(path);
+		if (entry == null || !entry.IsDirectory()) {
+			reply(FTPResponse.FILE_UNAVAIL, argument + ": No such directory.");
+			return;
+		}
+		this.directory = path;
+		reply(FTPResponse.FILE_ACTION_COMPLETED, "Directory changed to " + path + ".");
+	}
+
+	private void type(String argument) {
+		switch (argument.toUpperCase(Locale.ROOT)) {
+		case "A":
+		case "A N":
+			this.ascii = true;
+			break;
+		case "I":
+		case "L 8":
+			this.ascii = false;
+			break;
+		default:
+			reply(FTPResponse.UNIMPLEMENTED_PARAM);
+			return;
+		}
+		reply(FTPResponse.COMMAND_OK, "Type set to " + argument + ".");
+	}
+
+	private void mode(String argument) {
+		switch (argument.toUpperCase(Locale.ROOT)) {
+		case "S":
+			this.compressed = false;
+			break;
+		case "Z":
+			this.compressed = true;
+			break;
+		default:
+			reply(FTPResponse.UNIMPLEMENTED_PARAM);
+			return;
+		}
+		reply(FTPResponse.COMMAND_OK, "Mode set to " + argument + ".");
+	}
+
+	// Only "MODE Z LEVEL <0-9>" for now
+	private void options(String argument) {
+		String[] words = argument.toUpperCase(Locale.ROOT).split("\\s+");
+		if (words.length == 4 && words[0].equals("MODE") && words[1].equals("Z") && words[2].equals("LEVEL")
+				&& words[3].matches("[0-9]")) {
+			this.compressionLevel = Integer.parseInt(words[3]);
+			reply(FTPResponse.COMMAND_OK, "MODE Z level set to " + this.compressionLevel + ".");
+			return;
+		}
+		reply(FTPResponse.BAD_CMD_PARAMETERS);
+	}
+
+	private void size(String argument) throws IOException {
+		FTPListEntry entry = this.storage.Stat(resolve(argument));
+		if (entry == null || !entry.IsFile()) {
+			reply(FTPResponse.FILE_UNAVAIL, argument + ": No such file.");
+			return;
+		}
+		reply(FTPResponse.FILE_STATUS, Long.toString(entry.size));
+	}
+
+	private void restart(String argument) {
+		try {
+			long offset = Long.parseLong(argument);
+			if (offset >= 0) {
+				this.restartOffset = offset;
+				reply(FTPResponse.FILE_ACTION_PENDING, "Restarting at " + offset + ".");
+				return;
+			}
+		} catch (NumberFormatException e) {
+			// Falls through to the error below
+		}
+		reply(FTPResponse.BAD_CMD_PARAMETERS);
+	}
+
+	private void retrieve(String argument, long offset) throws IOException {
+		String path = resolve(argument);
+		FTPListEntry entry = this.storage.Stat(path);
+		if (entry == null || !entry.IsFile()) {
+			reply(FTPResponse.FILE_UNAVAIL, argument + ": No such file.");
+			return;
+		}
+		if (!hasDataConnection()) {
+			return;
+		}
+		ReadableByteChannel source = this.storage.OpenRead(path, offset);
+		if (!this.compressed && !this.ascii) {
+			startTransfer((source instanceof FileChannel) ? new FileChannelSender((FileChannel)source) : new FileSender(source));
+			return;
+		}
+		Sender sender = this.ascii ? new AsciiSender(new FileSender(source)) : new FileSender(source);
+		startTransfer(this.compressed ? new DeflatingSender(sender, this.compressionLevel) : sender);
+	}
+
+	private void store(String argument, boolean append) throws IOException {
+		if (!this.server.getAuthenticator().CanWrite(this.user)) {
+			refuseUpload(FTPResponse.FILE_UNAVAIL, argument + ": Permission denied.");
+			return;
+		}
+		String path = resolve(argument);
+		FTPListEntry entry = this.storage.Stat(path);
+		if ((entry != null && !entry.IsFile()) || path.equals("/")) {
+			refuseUpload(FTPResponse.BAD_FILE_NAME, argument + ": Not a file.");
+			return;
+		}
+		if (!hasDataConnection()) {
+			return;
+		}
+		WritableByteChannel target;
+		try {
+			target = this.storage.OpenWrite(path, append);
+		} catch (IOException e) {
+			refuseUpload(FTPResponse.FILE_UNAVAIL, e.getClass().getSimpleName() + ": " + e.getMessage());
+			return;
+		}
+		startTransfer(new Receiver(target, this.compressed ? new Inflater() : null, this.ascii ? FTPAsciiConverter.FromNetwork() : null));
+	}
+
+	// Drops the data connection along with the reply.  Clients that start sending before
+	// the reply comes back (like ours) would otherwise block once the socket buffers fill.
+	private void refuseUpload(FTPResponse response, String message) {
+		closeTransfer();
+		reply(response, message);
+	}
+
+	private void list(String argument, boolean machine) throws IOException {
+		// Clients like to send ls options along, which we don't do anything with
+		while (!machine && argument.startsWith("-")) {
+			int space = argument.indexOf(' ');
+			argument = (space < 0) ? "" : argument.substring(space + 1).trim();
+		}
+
+		String path = resolve(argument);
+		FTPListEntry entry = this.storage.Stat(path);
+		if (entry == null) {
+			reply(FTPResponse.FILE_UNAVAIL, argument + ": No such file or directory.");
+			return;
+		}
+		if (machine && !entry.IsDirectory()) {
+			reply(FTPResponse.BAD_CMD_PARAMETERS, argument + ": Not a directory.");
+			return;
+		}
+		if (!hasDataConnection()) {
+			return;
+		}
+		Iterator<FTPListEntry> entries = entry.IsDirectory() ? this.storage.List(path) : Collections.singletonList(entry).iterator();
+		Sender sender = new ListingSender(entries, machine);
+		startTransfer(this.compressed ? new DeflatingSender(sender, this.compressionLevel) : sender);
+	}
+
+	private void machineStat(String argument) throws IOException {
+		String path = resolve(argument);
+		FTPListEntry entry = this.storage.Stat(path);
+		if (entry == null) {
+			reply(FTPResponse.FILE_UNAVAIL, argument + ": No such file or directory.");
+			return;
+		}
+		queue(FTPResponse.FILE_ACTION_COMPLETED.code + "-Listing " + path + FTPConnection.CRLF
+				+ " " + FTPListFormat.Machine(entry, path) + FTPConnection.CRLF);
+		reply(FTPResponse.FILE_ACTION_COMPLETED, "End.");
+	}
+
+	private void help() {
+		StringBuilder help = new StringBuilder();
+		help.append(FTPResponse.HELP_MESSAGE.code).append("-The following commands are recognized:").append(FTPConnection.CRLF);
+		for (FTPCommand cmd : FTPCommand.values()) {
+			help.append(' ').append(cmd.name()).append(FTPConnection.CRLF);
+		}
+		queue(help.toString());
+		reply(FTPResponse.HELP_MESSAGE, "Help OK.");
+	}
+
+	private String resolve(String argument) {
+		return FTPSession.ResolvePath(this.directory, argument);
+	}
+
+	/* Data connection */
+
+	private void openPassive(FTPCommand cmd, String argument) throws IOException {
+		if (cmd == FTPCommand.EPSV && argument.equalsIgnoreCase("ALL")) {
+			reply(FTPResponse.COMMAND_OK, "EPSV ALL ok.");
+			return;
+		}
+		closeTransfer();
+
+		InetAddress local = this.control.socket().getLocalAddress();
+		if (cmd == FTPCommand.PASV && !(local instanceof Inet4Address)) {
+			reply(FTPResponse.CANT_OPEN_DATA_CONN, "PASV is IPv4 only, use EPSV.");
+			return;
+		}
+
+		this.passive = ServerSocketChannel.open();
+		this.passive.bind(new InetSocketAddress(local, 0), 1);
+		passiveOpened();
+		int port = this.passive.socket().getLocalPort();
+
+		if (cmd == FTPCommand.EPSV) {
+			reply(FTPResponse.ENTERING_EPSV, "Entering Extended Passive Mode (|||" + port + "|).");
+			return;
+		}
+		byte[] address = local.getAddress();
+		reply(FTPResponse.ENTERING_PASV, "Entering Passive Mode (" + (address[0] & 0xff) + "," + (address[1] & 0xff) + ","
+				+ (address[2] & 0xff) + "," + (address[3] & 0xff) + "," + (port >> 8) + "," + (port & 0xff) + ").");
+	}
+
+	private boolean hasDataConnection() {
+		if (this.passive == null && this.data == null) {
+			reply(FTPResponse.CANT_OPEN_DATA_CONN, "Use PASV or EPSV first.");
+			return false;
+		}
+		return true;
+	}
+
+	private void startTransfer(Transfer newTransfer) {
+		this.transfer = newTransfer;
+		reply(FTPResponse.ABOUT_TO_OPEN_DATA);
+		transferStarted();
+	}
+
+	// Moves some data for the running transfer.  Returns false once the transfer is over
+	// and its reply has been sent.
+	protected boolean stepTransfer() {
+		try {
+			if (!this.transfer.Step(this.data)) {
+				return true;
+			}
+		} catch (StorageException e) {
+			endTransfer(FTPResponse.SERVER_ERROR, "Transfer aborted: " + e.getMessage());
+			return false;
+		} catch (IOException e) {
+			endTransfer(FTPResponse.CLOSING_DATA_CONN_ABRT, "Transfer aborted: " + e.getMessage());
+			return false;
+		}
+		endTransfer(FTPResponse.CLOSING_DATA_CONN_SUCC, "Transfer complete.");
+		return false;
+	}
+
+	protected void endTransfer(FTPResponse response, String message) {
+		try {
+			this.transfer.Close();
+		} catch (IOException e) {
+			// The data made it, but the storage couldn't keep it
+			if (response == FTPResponse.CLOSING_DATA_CONN_SUCC) {
+				response = FTPResponse.SERVER_ERROR;
+				message = "Transfer aborted: " + e.getMessage();
+			}
+		}
+		this.transfer = null;
+		closeTransfer();
+		reply(response, message);
+	}
+
+	// Drops the passive listener, the data connection and any transfer, without replying
+	protected void closeTransfer() {
+		if (this.transfer != null) {
+			try {
+				this.transfer.Close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+			}
+			this.transfer = null;
+		}
+		closeQuietly(this.passive);
+		closeQuietly(this.data);
+		this.passive = null;
+		this.data = null;
+	}
+
+	// Whether a connection to the passive port comes from the same host as the control
+	// connection.  Anyone else who finds the port could take the download or feed us the
+	// upload.
+	protected boolean fromClient(SocketChannel channel) {
+		try {
+			InetAddress peer = ((InetSocketAddress)channel.getRemoteAddress()).getAddress();
+			InetAddress client = ((InetSocketAddress)this.control.getRemoteAddress()).getAddress();
+			if (peer.equals(client)) {
+				return true;
+			}
+			logger.log(Level.WARNING, "FTPServer: refused data connection from " + peer + " for a session from " + client);
+		} catch (IOException e) {
+			logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+		}
+		return false;
+	}
+
+	protected static void closeQuietly(Channel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+		}
+	}
+
+	/* Transfers */
+
+	// Failures on the storage side, which get a 451 instead of a 426
+	protected static class StorageException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		StorageException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	protected static abstract class Transfer {
+		// What the data connection's key waits for
+		abstract int Interest();
+
+		// Moves some data, returns true when it's all done
+		abstract boolean Step(SocketChannel data) throws IOException;
+
+		abstract void Close() throws IOException;
+	}
+
+	// Sends whatever fill() comes up with
+	private static abstract class Sender extends Transfer {
+		private final ByteBuffer buffer;
+		private boolean drained;
+
+		Sender() {
+			this(ByteBuffer.allocateDirect(DATA_BUFFER_SIZE));
+		}
+
+		Sender(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.buffer.flip();
+		}
+
+		@Override
+		int Interest() {
+			return SelectionKey.OP_WRITE;
+		}
+
+		@Override
+		boolean Step(SocketChannel data) throws IOException {
+			for (int i = 0; i < BUFFERS_PER_WAKEUP; i++) {
+				if (!this.buffer.hasRemaining()) {
+					if (this.drained) {
+						return true;
+					}
+					this.buffer.clear();
+					try {
+						this.drained = !fill(this.buffer);
+					} catch (IOException e) {
+						throw new StorageException(e);
+					}
+					this.buffer.flip();
+					continue;
+				}
+				if (data.write(this.buffer) == 0) {
+					// Socket's full, wait for the next OP_WRITE
+					return false;
+				}
+			}
+			return false;
+		}
+
+		// Adds to the buffer, and returns false once there's nothing left to add
+		abstract boolean fill(ByteBuffer buffer) throws IOException;
+	}
+
+	private static class FileSender extends Sender {
+		private final ReadableByteChannel source;
+
+		FileSender(ReadableByteChannel source) {
+			this.source = source;
+		}
+
+		@Override
+		boolean fill(ByteBuffer buffer) throws IOException {
+			return this.source.read(buffer) >= 0;
+		}
+
+		@Override
+		void Close() throws IOException {
+			this.source.close();
+		}
+	}
+
+	// Sends a file with FileChannel.transferTo, which is sendfile() on Linux, so the data goes
+	// from the page cache to the socket without being copied through our buffers.  The file
+	// is sent from wherever OpenRead() left it (the REST offset) up to the size it had when
+	// the transfer started.
+	private static class FileChannelSender extends Transfer {
+		private final FileChannel file;
+		private final long end;
+		private long position;
+
+		FileChannelSender(FileChannel file) throws IOException {
+			this.file = file;
+			this.position = file.position();
+			this.end = file.size();
+		}
+
+		@Override
+		int Interest() {
+			return SelectionKey.OP_WRITE;
+		}
+
+		@Override
+		boolean Step(SocketChannel data) throws IOException {
+			for (int i = 0; i < BUFFERS_PER_WAKEUP && this.position < this.end; i++) {
+				long wanted = Math.min(this.end - this.position, TRANSFER_CHUNK_SIZE);
+				long count = this.file.transferTo(this.position, wanted, data);
+				this.position += count;
+				if (count == 0 && this.file.size() <= this.position) {
+					// Otherwise we'd be woken up to send nothing forever
+					throw new StorageException(new IOException("File was truncated during transfer"));
+				}
+				if (count < wanted) {
+					// Socket's full, wait for the next OP_WRITE
+					return false;
+				}
+			}
+			return this.position >= this.end;
+		}
+
+		@Override
+		void Close() throws IOException {
+			this.file.close();
+		}
+	}
+
+	// MODE Z: deflates what another sender comes up with, as one zlib stream.  The Deflater
+	// only takes arrays on Java 8, so the source fills a heap buffer.
+	private static class DeflatingSender extends Sender {
+		private final Sender source;
+		private final ByteBuffer input;
+		private final byte[] output;
+		private final Deflater deflater;
+		private boolean sourceDrained;
+
+		DeflatingSender(Sender source, int level) {
+			this.source = source;
+			this.input = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+			this.output = new byte[DATA_BUFFER_SIZE];
+			this.deflater = new Deflater(level);
+		}
+
+		@Override
+		boolean fill(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (this.deflater.needsInput() && !this.sourceDrained) {
+					this.input.clear();
+					this.sourceDrained = !this.source.fill(this.input);
+					this.deflater.setInput(this.input.array(), 0, this.input.position());
+					if (this.sourceDrained) {
+						this.deflater.finish();
+					}
+					continue;
+				}
+				int count = this.deflater.deflate(this.output, 0, Math.min(this.output.length, buffer.remaining()));
+				buffer.put(this.output, 0, count);
+				if (this.deflater.finished()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void Close() throws IOException {
+			this.deflater.end();
+			this.source.Close();
+		}
+	}
+
+	// TYPE A: converts what another sender comes up with to CRLF line endings
+	private static class AsciiSender extends Sender {
+		private final Sender source;
+		private final FTPAsciiConverter converter;
+		private final ByteBuffer input;
+		private final byte[] output;
+		private int outputOffset, outputLength;
+		private boolean sourceDrained;
+
+		AsciiSender(Sender source) {
+			this.source = source;
+			this.converter = FTPAsciiConverter.ToNetwork();
+			this.input = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+			this.output = new byte[FTPAsciiConverter.MaxOutput(DATA_BUFFER_SIZE)];
+		}
+
+		@Override
+		boolean fill(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (this.outputOffset == this.outputLength) {
+					if (this.sourceDrained) {
+						return false;
+					}
+					this.input.clear();
+					this.sourceDrained = !this.source.fill(this.input);
+					this.outputOffset = 0;
+					this.outputLength = this.converter.Convert(this.input.array(), this.input.position(), this.output);
+					if (this.sourceDrained) {
+						this.outputLength += this.converter.Finish(this.output, this.outputLength);
+					}
+					continue;
+				}
+				int count = Math.min(buffer.remaining(), this.outputLength - this.outputOffset);
+				buffer.put(this.output, this.outputOffset, count);
+				this.outputOffset += count;
+			}
+			return true;
+		}
+
+		@Override
+		void Close() throws IOException {
+			this.source.Close();
+		}
+	}
+
+	// Formats the entries as they're sent, so a huge directory is never held as text
+	private static class ListingSender extends Sender {
+		private final Iterator<FTPListEntry> entries;
+		private final boolean machine;
+		private final long now;
+		private byte[] line;
+		private int lineOffset;
+
+		ListingSender(Iterator<FTPListEntry> entries, boolean machine) {
+			this.entries = entries;
+			this.machine = machine;
+			this.now = System.currentTimeMillis();
+		}
+
+		@Override
+		boolean fill(ByteBuffer buffer) {
+			while (buffer.hasRemaining()) {
+				if (this.line == null) {
+					if (!this.entries.hasNext()) {
+						return false;
+					}
+					FTPListEntry entry = this.entries.next();
+					String text = this.machine ? FTPListFormat.Machine(entry, entry.name) : FTPListFormat.Unix(entry, this.now);
+					this.line = (text + FTPConnection.CRLF).getBytes(StandardCharsets.UTF_8);
+					this.lineOffset = 0;
+				}
+				int count = Math.min(buffer.remaining(), this.line.length - this.lineOffset);
+				buffer.put(this.line, this.lineOffset, count);
+				this.lineOffset += count;
+				if (this.lineOffset == this.line.length) {
+					this.line = null;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void Close() throws IOException {
+			// A listing that stopped early may still have a directory open
+			if (this.entries instanceof Closeable) {
+				((Closeable)this.entries).close();
+			}
+		}
+	}
+
+	// Writes everything the client sends to the storage, until it closes the data connection.
+	// With an Inflater (MODE Z) the data is inflated first, and has to be a complete zlib stream.
+	// With a converter (TYPE A) line endings are converted before it's stored.
+	private static class Receiver extends Transfer {
+		private final WritableByteChannel target;
+		private final ByteBuffer buffer;
+		private final Inflater inflater;
+		private final byte[] output;
+		private final FTPAsciiConverter converter;
+		private final byte[] converted;
+
+		Receiver(WritableByteChannel target, Inflater inflater, FTPAsciiConverter converter) {
+			this.target = target;
+			this.inflater = inflater;
+			this.converter = converter;
+			if (inflater == null && converter == null) {
+				this.buffer = ByteBuffer.allocateDirect(DATA_BUFFER_SIZE);
+			} else {
+				// Inflater and the converter only take arrays
+				this.buffer = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+			}
+			this.output = (inflater != null) ? new byte[DATA_BUFFER_SIZE] : null;
+			this.converted = (converter != null) ? new byte[FTPAsciiConverter.MaxOutput(DATA_BUFFER_SIZE)] : null;
+		}
+
+		@Override
+		int Interest() {
+			return SelectionKey.OP_READ;
+		}
+
+		@Override
+		boolean Step(SocketChannel data) throws IOException {
+			for (int i = 0; i < BUFFERS_PER_WAKEUP; i++) {
+				this.buffer.clear();
+				int count = data.read(this.buffer);
+				if (count < 0) {
+					if (this.inflater != null && !this.inflater.finished()) {
+						throw new IOException("Compressed data ended early");
+					}
+					if (this.converter != null) {
+						store(ByteBuffer.wrap(this.converted, 0, this.converter.Finish(this.converted)));
+					}
+					return true;
+				}
+				if (count == 0) {
+					return false;
+				}
+				this.buffer.flip();
+				if (this.inflater != null) {
+					inflate();
+					continue;
+				}
+				write(this.buffer);
+			}
+			return false;
+		}
+
+		private void inflate() throws IOException {
+			this.inflater.setInput(this.buffer.array(), 0, this.buffer.limit());
+			try {
+				int count;
+				while ((count = this.inflater.inflate(this.output)) > 0) {
+					write(ByteBuffer.wrap(this.output, 0, count));
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Bad compressed data: " + e.getMessage());
+			}
+		}
+
+		// Everything that's read (or inflated) starts at the beginning of its array
+		private void write(ByteBuffer bytes) throws StorageException {
+			if (this.converter != null) {
+				bytes = ByteBuffer.wrap(this.converted, 0, this.converter.Convert(bytes.array(), bytes.limit(), this.converted));
+			}
+			store(bytes);
+		}
+
+		private void store(ByteBuffer bytes) throws StorageException {
+			try {
+				while (bytes.hasRemaining()) {
+					this.target.write(bytes);
+				}
+			} catch (IOException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		@Override
+		void Close() throws IOException {
+			if (this.inflater != null) {
+				this.inflater.end();
+			}
+			this.target.close();
+		}
+	}
+
+}
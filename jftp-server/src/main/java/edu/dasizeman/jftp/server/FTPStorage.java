@@ -0,0 +1,29 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+import edu.dasizeman.jftp.FTPListEntry;
+
+// Where the server's files live.  Paths are always absolute and normalized ("/a/b"), and
+// the server never hands out anything outside of what the storage gives it.  Entries use
+// the client's MLSD model, so the same facts come out of LIST, MLSD and MLST.
+public interface FTPStorage {
+
+	// The entry for a path, or null if there's nothing there.  The root is always a directory.
+	public FTPListEntry Stat(String path) throws IOException;
+
+	// The entries of a directory, read lazily so huge directories don't have to fit in memory.
+	// If the iterator is also Closeable, it's closed when the listing ends or is aborted.
+	public Iterator<FTPListEntry> List(String path) throws IOException;
+
+	// A channel positioned at offset into the file.  FileChannels are sent with transferTo
+	// (sendfile), anything else is copied through a buffer.
+	public ReadableByteChannel OpenRead(String path, long offset) throws IOException;
+
+	// A channel that replaces the file, or adds to its end
+	public WritableByteChannel OpenWrite(String path, boolean append) throws IOException;
+
+}
@@ -0,0 +1,108 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.dasizeman.jftp.FTPResponse;
+
+// A session that runs as plain blocking code on a thread of its own: read a command, do it,
+// transfer the data inline.  Meant for virtual threads, where a blocked session costs next
+// to nothing, but it works on any thread.
+final class FTPThreadSession extends FTPServerSession implements Runnable {
+	// How long we wait for the client to connect to the passive port
+	private static final int DATA_CONNECT_TIMEOUT = 30*1000;
+
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	FTPThreadSession(FTPServer server, SocketChannel control) {
+		super(server, control);
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.control.configureBlocking(true);
+			reply(FTPResponse.NEW_USER_SERVICE_RDY, "JFTP server ready.");
+			while (!this.closed && !this.closing) {
+				if (this.control.read(this.commandBuffer) < 0) {
+					break;
+				}
+				processCommands();
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "FTPServer: " + e.getClass().getName() + " " + e.getMessage());
+		} finally {
+			Close();
+			this.server.sessionEnded(this);
+		}
+	}
+
+	@Override
+	protected void queue(String text) {
+		if (this.closed) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		try {
+			while (buffer.hasRemaining()) {
+				this.control.write(buffer);
+			}
+		} catch (IOException e) {
+			// The read loop finds out next time around
+			logger.log(Level.FINE, "FTPServer: " + e.getClass().getName() + " " + e.getMessage());
+			Close();
+		}
+	}
+
+	@Override
+	protected void passiveOpened() {
+		// The connection is accepted when a transfer needs it
+	}
+
+	// The whole transfer happens right here, before the next command is read
+	@Override
+	protected void transferStarted() {
+		if (this.data == null) {
+			try {
+				// Strangers are turned away, but don't get the client more time
+				long deadline = System.currentTimeMillis() + DATA_CONNECT_TIMEOUT;
+				while (this.data == null) {
+					int timeout = (int)(deadline - System.currentTimeMillis());
+					if (timeout <= 0) {
+						throw new SocketTimeoutException();
+					}
+					this.passive.socket().setSoTimeout(timeout);
+					SocketChannel channel = this.passive.socket().accept().getChannel();
+					if (fromClient(channel)) {
+						this.data = channel;
+					} else {
+						closeQuietly(channel);
+					}
+				}
+				this.data.socket().setTcpNoDelay(true);
+			} catch (SocketTimeoutException e) {
+				endTransfer(FTPResponse.CANT_OPEN_DATA_CONN, "Timed out waiting for the data connection.");
+				return;
+			} catch (IOException e) {
+				endTransfer(FTPResponse.CANT_OPEN_DATA_CONN, "Could not open data connection: " + e.getMessage());
+				return;
+			}
+			closeQuietly(this.passive);
+			this.passive = null;
+		}
+
+		while (stepTransfer()) {
+			// Blocking channels never come back empty handed, so this only ends with the transfer
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.dasizeman.jftp.FTPListEntry;
+
+// Serves a directory of the local file system.  Clients see it as "/", and can't get out of it.
+public class FileSystemStorage implements FTPStorage {
+	private final Path root;
+
+	public FileSystemStorage(Path root) throws IOException {
+		this.root = root.toRealPath();
+	}
+
+	// Where a server path really lives on disk, with symlinks followed, so a link inside the
+	// root can't lead outside of it.  For a file that doesn't exist yet (STOR), that's its
+	// directory's real path plus its name.
+	public Path Resolve(String path) throws IOException {
+		Path resolved = this.root.resolve(path.replaceFirst("^/+", "")).normalize();
+		if (!resolved.startsWith(this.root)) {
+			throw new NoSuchFileException(path);
+		}
+
+		Path real;
+		if (Files.exists(resolved, LinkOption.NOFOLLOW_LINKS)) {
+			// A dangling link fails here too, rather than being created through
+			real = resolved.toRealPath();
+		} else {
+			Path parent = resolved.getParent();
+			if (parent == null) {
+				throw new NoSuchFileException(path);
+			}
+			real = parent.toRealPath().resolve(resolved.getFileName());
+		}
+		if (!real.startsWith(this.root)) {
+			throw new NoSuchFileException(path);
+		}
+		return real;
+	}
+
+	@Override
+	public FTPListEntry Stat(String path) throws IOException {
+		Path file;
+		try {
+			file = Resolve(path);
+		} catch (NoSuchFileException e) {
+			// Including links that lead outside the root, which aren't there as far as clients know
+			return null;
+		}
+		if (!Files.exists(file)) {
+			return null;
+		}
+		
+		// The name the client asked for, not the one at the end of a link
+		String name = path.replaceFirst("/+$", "");
+		name = name.isEmpty() ? "/" : name.substring(name.lastIndexOf('/') + 1);
+		return entry(name, file);
+	}
+
+	@Override
+	public Iterator<FTPListEntry> List(String path) throws IOException {
+		return new DirectoryIterator(Files.newDirectoryStream(Resolve(path)));
+	}
+
+	@Override
+	public ReadableByteChannel OpenRead(String path, long offset) throws IOException {
+		FileChannel channel = FileChannel.open(Resolve(path), StandardOpenOption.READ);
+		channel.position(offset);
+		return channel;
+	}
+
+	@Override
+	public WritableByteChannel OpenWrite(String path, boolean append) throws IOException {
+		return FileChannel.open(Resolve(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	private static FTPListEntry entry(String name, Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		boolean directory = attributes.isDirectory();
+		return new FTPListEntry(name,
+				directory ? FTPListEntry.TYPE_DIR : FTPListEntry.TYPE_FILE,
+				attributes.size(),
+				attributes.lastModifiedTime().toMillis(),
+				directory ? "elcf" : "radfw",
+				null);
+	}
+
+	// Closes the directory once it's been read to the end, or when the listing is closed
+	private static class DirectoryIterator implements Iterator<FTPListEntry>, Closeable {
+		private final DirectoryStream<Path> stream;
+		private final Iterator<Path> files;
+
+		DirectoryIterator(DirectoryStream<Path> stream) {
+			this.stream = stream;
+			this.files = stream.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.files.hasNext()) {
+				return true;
+			}
+			try {
+				close();
+			} catch (IOException e) {
+				// Nothing else to read anyway
+			}
+			return false;
+		}
+
+		@Override
+		public FTPListEntry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Path file = this.files.next();
+			try {
+				return entry(file.getFileName().toString(), file);
+			} catch (IOException e) {
+				// Gone since the directory was read, show it without facts
+				return new FTPListEntry(file.getFileName().toString(), FTPListEntry.TYPE_FILE, -1, -1, null, null);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.stream.close();
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package edu.dasizeman.jftp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import edu.dasizeman.jftp.FTPListEntry;
+
+// Files kept in memory, for benchmarks and tests.  Directories exist as long as there's a
+// file somewhere under them.
+public class MemoryStorage implements FTPStorage {
+
+	private static class MemoryFile {
+		private final byte[] data;
+		private final long modified;
+
+		MemoryFile(byte[] data) {
+			this.data = data;
+			this.modified = System.currentTimeMillis();
+		}
+	}
+
+	private final ConcurrentSkipListMap<String, MemoryFile> files;
+
+	public MemoryStorage() {
+		this.files = new ConcurrentSkipListMap<String, MemoryFile>();
+	}
+
+	public void Put(String path, byte[] data) {
+		this.files.put(path, new MemoryFile(data));
+	}
+
+	public byte[] Get(String path) {
+		MemoryFile file = this.files.get(path);
+		return (file == null) ? null : file.data;
+	}
+
+	@Override
+	public FTPListEntry Stat(String path) {
+		MemoryFile file = this.files.get(path);
+		if (file != null) {
+			return fileEntry(name(path), file);
+		}
+		if (path.equals("/") || !children(path).isEmpty()) {
+			return directoryEntry(path.equals("/") ? "/" : name(path));
+		}
+		return null;
+	}
+
+	@Override
+	public Iterator<FTPListEntry> List(String path) throws IOException {
+		Map<String, MemoryFile> children = children(path);
+		if (children.isEmpty() && !path.equals("/")) {
+			throw new NoSuchFileException(path);
+		}
+
+		// Files directly in here, and one entry for each directory below
+		String prefix = path.endsWith("/") ? path : path + "/";
+		Map<String, FTPListEntry> entries = new LinkedHashMap<String, FTPListEntry>();
+		for (Map.Entry<String, MemoryFile> child : children.entrySet()) {
+			String rest = child.getKey().substring(prefix.length());
+			int slash = rest.indexOf('/');
+			if (slash < 0) {
+				entries.put(rest, fileEntry(rest, child.getValue()));
+			} else if (!entries.containsKey(rest.substring(0, slash))) {
+				entries.put(rest.substring(0, slash), directoryEntry(rest.substring(0, slash)));
+			}
+		}
+		return entries.values().iterator();
+	}
+
+	@Override
+	public ReadableByteChannel OpenRead(String path, long offset) throws IOException {
+		MemoryFile file = this.files.get(path);
+		if (file == null) {
+			throw new NoSuchFileException(path);
+		}
+		int start = (int)Math.min(offset, file.data.length);
+		return Channels.newChannel(new ByteArrayInputStream(file.data, start, file.data.length - start));
+	}
+
+	@Override
+	public WritableByteChannel OpenWrite(final String path, boolean append) {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		MemoryFile existing = this.files.get(path);
+		if (append && existing != null) {
+			buffer.write(existing.data, 0, existing.data.length);
+		}
+
+		// The file shows up once it's complete
+		return Channels.newChannel(new FilterOutputStream(buffer) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				Put(path, buffer.toByteArray());
+			}
+		});
+	}
+
+	private Map<String, MemoryFile> children(String path) {
+		String prefix = path.endsWith("/") ? path : path + "/";
+		return this.files.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+
+	private static String name(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	private static FTPListEntry fileEntry(String name, MemoryFile file) {
+		return new FTPListEntry(name, FTPListEntry.TYPE_FILE, file.data.length, file.modified, "radfw", null);
+	}
+
+	private static FTPListEntry directoryEntry(String name) {
+		return new FTPListEntry(name, FTPListEntry.TYPE_DIR, 0, -1, "elcf", null);
+	}
+
+}
@@ -0,0 +1,306 @@
+package edu.dasizeman.jftp.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.dasizeman.jftp.FTPClientManager;
+import edu.dasizeman.jftp.FTPCommand;
+import edu.dasizeman.jftp.FTPListingCache;
+import edu.dasizeman.jftp.FTPSession;
+import edu.dasizeman.jftp.FTPSessionPool;
+import edu.dasizeman.jftp.ProtocolException;
+
+// The client against our own server on the loopback interface
+public class FTPClientManagerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FTPServer server;
+	private FTPClientManager manager;
+
+	@Before
+	public void setUp() throws Exception {
+		this.server = new FTPServer(new FileSystemStorage(this.folder.newFolder("root").toPath()));
+		this.server.Start();
+		this.manager = new FTPClientManager();
+	}
+
+	@After
+	public void tearDown() throws Throwable {
+		this.manager.ParseAndExecuteInterfaceCommand("quit");
+		this.server.close();
+	}
+
+	// The file is named by where it would land locally, which is also where the server
+	// won't find it
+	private String missingFile() {
+		return new File(this.folder.getRoot(), "nothere.bin").getAbsolutePath();
+	}
+
+	// A download the server refuses has to fail the batch instead of leaving it waiting on a
+	// transfer that never starts
+	@Test(timeout = 10000)
+	public void failedGetInBatch() throws Throwable {
+		try {
+			this.manager.Pipeline(Arrays.asList(
+					"connect " + this.server.GetHost(),
+					"login -u anonymous -p test",
+					"passive",
+					"get " + missingFile(),
+					"pwd"));
+			fail("get of a missing file succeeded");
+		} catch (ProtocolException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("No such file"));
+		}
+		assertFalse(new File(missingFile()).exists());
+
+		// And the session is still good for the next command, once the shell has reset
+		this.manager.Reset();
+		this.manager.ParseAndExecuteInterfaceCommand("pwd");
+	}
+
+	// A refused download leaves what's already there alone
+	@Test(timeout = 10000)
+	public void failedGetKeepsLocalFile() throws Throwable {
+		File local = new File(missingFile());
+		Files.write(local.toPath(), "keep".getBytes(StandardCharsets.US_ASCII));
+		try {
+			this.manager.Pipeline(Arrays.asList(
+					"connect " + this.server.GetHost(),
+					"login -u anonymous -p test",
+					"passive",
+					"get " + local.getAbsolutePath()));
+			fail("get of a missing file succeeded");
+		} catch (ProtocolException e) {
+			this.manager.Reset();
+		}
+		assertEquals("keep", new String(Files.readAllBytes(local.toPath()), StandardCharsets.US_ASCII));
+	}
+
+	// Segments are byte ranges, which only line up in binary
+	@Test(timeout = 10000)
+	public void segmentedGetNeedsBinary() throws Throwable {
+		this.manager.ParseAndExecuteInterfaceCommand("connect " + this.server.GetHost());
+		this.manager.ParseAndExecuteInterfaceCommand("login -u anonymous -p test");
+		this.manager.ParseAndExecuteInterfaceCommand("type ascii");
+		try {
+			this.manager.ParseAndExecuteInterfaceCommand("get -n 2 " + missingFile());
+			fail("segmented get in type ascii went ahead");
+		} catch (ProtocolException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("binary"));
+		}
+		assertFalse(new File(missingFile()).exists());
+	}
+
+	// Segments can land on a pooled session that was left in MODE Z, which has to go back
+	// to MODE S before it's asked for a byte range
+	@Test(timeout = 20000)
+	public void segmentedGetFromCompressedSession() throws Throwable {
+		// The same path locally and on the server, which serves from its own root
+		File local = new File(this.folder.newFolder("local"), "big.bin");
+		Path remote = this.folder.getRoot().toPath().resolve("root").resolve(local.getAbsolutePath().replaceFirst("^/+", ""));
+		Files.createDirectories(remote.getParent());
+		byte[] content = new byte[3*1024*1024 + 123];
+		new Random(42).nextBytes(content);
+		Files.write(remote, content);
+
+		// connect takes one, and the segments get the other
+		FTPSessionPool pool = new FTPSessionPool();
+		List<FTPSession> compressed = new ArrayList<FTPSession>();
+		for (int i = 0; i < 2; i++) {
+			FTPSession session = pool.Acquire(this.server.GetHost(), "anonymous", "test");
+			session.Execute(FTPCommand.MODE, "Z");
+			compressed.add(session);
+		}
+		for (FTPSession session : compressed) {
+			pool.Release(session);
+		}
+		this.manager = new FTPClientManager(pool, new FTPListingCache());
+
+		this.manager.Pipeline(Arrays.asList(
+				"connect " + this.server.GetHost(),
+				"get -n 2 " + local.getAbsolutePath()));
+		assertTrue(Arrays.equals(content, Files.readAllBytes(local.toPath())));
+
+		// The segment sessions went back to the pool in stream mode
+		assertEquals(2, pool.IdleCount());
+		List<FTPSession> segments = new ArrayList<FTPSession>();
+		for (int i = 0; i < 2; i++) {
+			FTPSession session = pool.Acquire(this.server.GetHost(), "anonymous");
+			assertFalse(session.IsCompressed());
+			segments.add(session);
+		}
+		for (FTPSession session : segments) {
+			pool.Release(session);
+		}
+	}
+
+	// A 421 isn't the answer to any one command: everything in flight fails with it
+	@Test(timeout = 10000)
+	public void serverClosingFailsBatch() throws Throwable {
+		try (final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread fake = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try (Socket control = listener.accept()) {
+						BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+						OutputStream out = control.getOutputStream();
+						out.write("220 Hello.\r\n".getBytes(StandardCharsets.US_ASCII));
+						String line;
+						while ((line = in.readLine()) != null) {
+							if (line.startsWith("USER")) {
+								out.write("331 Password please.\r\n".getBytes(StandardCharsets.US_ASCII));
+							} else if (line.startsWith("PASS")) {
+								out.write("230 Logged in.\r\n".getBytes(StandardCharsets.US_ASCII));
+							} else {
+								// Hang up on the first real command, with the others still coming
+								out.write("421 Timeout.\r\n".getBytes(StandardCharsets.US_ASCII));
+								control.shutdownOutput();
+								break;
+							}
+						}
+						
+						// Don't reset the connection under the 421 before the client reads it
+						while (in.readLine() != null) {
+						}
+					} catch (Exception e) {
+						// The test sees it as the client failing
+					}
+				}
+			});
+			fake.start();
+			try {
+				this.manager.Pipeline(Arrays.asList(
+						"connect 127.0.0.1:" + listener.getLocalPort(),
+						"login -u anonymous -p test",
+						"pwd",
+						"pwd",
+						"pwd"));
+				fail("batch succeeded after a 421");
+			} catch (ProtocolException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+			}
+			this.manager.Reset();
+			fake.join();
+		}
+	}
+
+	// An upload waits for the server to take the STOR, so a refused one sends nothing
+	@Test(timeout = 10000)
+	public void refusedPutSendsNothing() throws Throwable {
+		File local = this.folder.newFile("upload.bin");
+		Files.write(local.toPath(), new byte[1024*1024]);
+		final AtomicLong received = new AtomicLong(-1);
+		try (final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				final ServerSocket dataListener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread fake = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try (Socket control = listener.accept()) {
+						BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+						OutputStream out = control.getOutputStream();
+						out.write("220 Hello.\r\n".getBytes(StandardCharsets.US_ASCII));
+						String line;
+						while ((line = in.readLine()) != null) {
+							if (line.startsWith("USER")) {
+								out.write("331 Password please.\r\n".getBytes(StandardCharsets.US_ASCII));
+							} else if (line.startsWith("PASS")) {
+								out.write("230 Logged in.\r\n".getBytes(StandardCharsets.US_ASCII));
+							} else if (line.startsWith("PASV")) {
+								int port = dataListener.getLocalPort();
+								out.write(("227 Entering Passive Mode (127,0,0,1," + (port / 256) + "," + (port % 256) + ").\r\n").getBytes(StandardCharsets.US_ASCII));
+							} else if (line.startsWith("STOR")) {
+								// Give an eager client time to start streaming before saying no
+								try (Socket data = dataListener.accept()) {
+									Thread.sleep(200);
+									out.write("550 Not allowed.\r\n".getBytes(StandardCharsets.US_ASCII));
+									long count = 0;
+									InputStream dataIn = data.getInputStream();
+									byte[] buffer = new byte[8192];
+									int read;
+									while ((read = dataIn.read(buffer)) != -1) {
+										count += read;
+									}
+									received.set(count);
+								}
+							} else {
+								out.write("200 OK.\r\n".getBytes(StandardCharsets.US_ASCII));
+							}
+						}
+					} catch (Exception e) {
+						// The test sees it as nothing received
+					}
+				}
+			});
+			fake.start();
+			try {
+				this.manager.Pipeline(Arrays.asList(
+						"connect 127.0.0.1:" + listener.getLocalPort(),
+						"login -u anonymous -p test",
+						"passive",
+						"put " + local.getAbsolutePath()));
+				fail("refused put succeeded");
+			} catch (ProtocolException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Not allowed"));
+			}
+			this.manager.Reset();
+			this.manager.ParseAndExecuteInterfaceCommand("quit");
+			fake.join();
+		}
+		assertEquals(0, received.get());
+	}
+
+	// However many threads the fork-join pool brings in, a mirror stays within its -n sessions
+	@Test(timeout = 20000)
+	public void mirrorKeepsToItsSessions() throws Throwable {
+		Path tree = this.folder.getRoot().toPath().resolve("root").resolve("tree");
+		for (int i = 0; i < 8; i++) {
+			Path directory = Files.createDirectories(tree.resolve("dir" + i).resolve("sub"));
+			for (int j = 0; j < 4; j++) {
+				Files.write(directory.resolve("file" + j), ("file " + i + " " + j).getBytes(StandardCharsets.US_ASCII));
+				Files.write(directory.getParent().resolve("file" + j), ("top " + i + " " + j).getBytes(StandardCharsets.US_ASCII));
+			}
+		}
+		File local = new File(this.folder.getRoot(), "mirror");
+		FTPSessionPool pool = new FTPSessionPool();
+		this.manager = new FTPClientManager(pool, new FTPListingCache());
+
+		this.manager.Pipeline(Arrays.asList(
+				"connect " + this.server.GetHost(),
+				"login -u anonymous -p test",
+				"mirror -n 2 /tree " + local.getAbsolutePath()));
+
+		// Every session the mirror opened is back in the pool
+		assertTrue("mirror used " + pool.IdleCount() + " sessions", pool.IdleCount() <= 2);
+		for (int i = 0; i < 8; i++) {
+			assertEquals("file " + i + " 3", new String(Files.readAllBytes(local.toPath().resolve("dir" + i + "/sub/file3")), StandardCharsets.US_ASCII));
+			assertEquals("top " + i + " 0", new String(Files.readAllBytes(local.toPath().resolve("dir" + i + "/file0")), StandardCharsets.US_ASCII));
+		}
+	}
+
+}
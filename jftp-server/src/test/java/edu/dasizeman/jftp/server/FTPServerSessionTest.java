@@ -0,0 +1,106 @@
+package edu.dasizeman.jftp.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.dasizeman.jftp.FTPCommand;
+import edu.dasizeman.jftp.FTPConnection;
+import edu.dasizeman.jftp.FTPSession;
+
+// The server's side of transfers, looked at on the wire
+public class FTPServerSessionTest {
+	private static final String NL = System.lineSeparator();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path root;
+	private FTPServer server;
+	private FTPSession session;
+
+	@Before
+	public void setUp() throws Exception {
+		this.root = this.folder.newFolder("root").toPath();
+		this.server = new FTPServer(new FileSystemStorage(this.root));
+		this.server.Start();
+		this.session = FTPSession.Open(this.server.GetHost());
+		this.session.Login("anonymous", "test");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.session.Close();
+		this.server.close();
+	}
+
+	private byte[] retrieve(String type, String path) throws Exception {
+		this.session.Execute(FTPCommand.TYPE, type);
+		FTPConnection data = this.session.OpenPassiveData();
+		this.session.Execute(FTPCommand.RETR, path);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		InputStream in = data.getInputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			received.write(buffer, 0, count);
+		}
+		assertEquals(226, this.session.ReadResponse().code);
+		this.session.ResetDataConnection();
+		return received.toByteArray();
+	}
+
+	private void store(String type, String path, byte[] content) throws Exception {
+		this.session.Execute(FTPCommand.TYPE, type);
+		FTPConnection data = this.session.OpenPassiveData();
+		this.session.Execute(FTPCommand.STOR, path);
+		OutputStream out = data.getOutputStream();
+		out.write(content);
+		out.flush();
+		this.session.ResetDataConnection();
+		assertEquals(226, this.session.ReadResponse().code);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test(timeout = 10000)
+	public void asciiRetrieveSendsCRLF() throws Exception {
+		Files.write(this.root.resolve("text.txt"), bytes("one" + NL + "two" + NL));
+		assertArrayEquals(bytes("one\r\ntwo\r\n"), retrieve("A", "text.txt"));
+	}
+
+	@Test(timeout = 10000)
+	public void binaryRetrieveSendsTheFile() throws Exception {
+		byte[] content = bytes("one\ntwo\r\nthree\r");
+		Files.write(this.root.resolve("text.txt"), content);
+		assertArrayEquals(content, retrieve("I", "text.txt"));
+	}
+
+	@Test(timeout = 10000)
+	public void asciiStoreConvertsCRLF() throws Exception {
+		store("A", "text.txt", bytes("one\r\ntwo\r\nbare\rcr"));
+		assertArrayEquals(bytes("one" + NL + "two" + NL + "bare\rcr"), Files.readAllBytes(this.root.resolve("text.txt")));
+	}
+
+	@Test(timeout = 10000)
+	public void binaryStoreKeepsCRLF() throws Exception {
+		byte[] content = bytes("one\r\ntwo\r\n");
+		store("I", "text.txt", content);
+		assertArrayEquals(content, Files.readAllBytes(this.root.resolve("text.txt")));
+	}
+
+}
@@ -0,0 +1,64 @@
+package edu.dasizeman.jftp.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.dasizeman.jftp.FTPShell;
+import edu.dasizeman.jftp.Shell;
+
+// Scripts (-script and -c) against our own server on the loopback interface
+public class FTPShellTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FTPServer server;
+	private FTPShell shell;
+
+	@Before
+	public void setUp() throws Exception {
+		this.server = new FTPServer(new FileSystemStorage(this.folder.newFolder("root").toPath()));
+		this.server.Start();
+		Shell.SetInteractive(false);
+		this.shell = new FTPShell(new File(this.folder.getRoot(), "jftp.log").getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Shell.SetInteractive(true);
+		this.server.close();
+	}
+
+	// A refused download stops the script with 1, and doesn't leave it waiting on a transfer
+	// that never starts
+	@Test(timeout = 10000)
+	public void failedGetStopsScript() {
+		File missing = new File(this.folder.getRoot(), "nothere.bin");
+		int status = this.shell.RunScript(Arrays.asList(
+				"connect " + this.server.GetHost(),
+				"login -u anonymous -p test",
+				"passive",
+				"get " + missing.getAbsolutePath(),
+				"pwd"));
+		assertEquals(1, status);
+	}
+
+	@Test(timeout = 10000)
+	public void scriptSucceeds() {
+		int status = this.shell.RunScript(Arrays.asList(
+				"connect " + this.server.GetHost(),
+				"login -u anonymous -p test",
+				"passive",
+				"ls",
+				"pwd"));
+		assertEquals(0, status);
+	}
+
+}
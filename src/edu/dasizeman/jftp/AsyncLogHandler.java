@@ -0,0 +1,184 @@
+package edu.dasizeman.jftp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+// Hands log records to one writer thread through a lock-free ring buffer, so the threads
+// doing protocol work only pay for building the record.  Formatting and writing happen on
+// the writer, which flushes once per batch instead of once per record.  If the writer falls
+// behind and the ring fills up, records below INFO are dropped (and counted) while INFO and
+// up wait for room.
+public class AsyncLogHandler extends Handler {
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	// How long the writer sleeps when there's nothing to do, in case a wakeup is missed
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final Handler[] targets;
+	private final AtomicReferenceArray<LogRecord> ring;
+	private final int mask;
+
+	// Next slot a producer claims, and next slot the writer reads
+	private final AtomicLong head;
+	private volatile long tail;
+	private final AtomicLong dropped;
+
+	private final Thread writer;
+	private volatile boolean writerIdle;
+	private volatile boolean closed;
+
+	// Records go to every target whose level lets them through
+	public AsyncLogHandler(int capacity, Handler... targets) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.targets = targets.clone();
+		this.ring = new AtomicReferenceArray<LogRecord>(size);
+		this.mask = size - 1;
+		this.head = new AtomicLong();
+		this.dropped = new AtomicLong();
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "AsyncLogHandler");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (this.closed || !wanted(record)) {
+			return;
+		}
+
+		long slot;
+		while (true) {
+			slot = this.head.get();
+			if (slot - this.tail > this.mask) {
+				// Full.  Chatter can go, anything that matters waits for the writer.
+				if (record.getLevel().intValue() < Level.INFO.intValue()) {
+					this.dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.unpark(this.writer);
+				Thread.yield();
+				continue;
+			}
+			if (this.head.compareAndSet(slot, slot + 1)) {
+				break;
+			}
+		}
+
+		this.ring.set((int)slot & this.mask, record);
+		if (this.writerIdle) {
+			LockSupport.unpark(this.writer);
+		}
+	}
+
+	// Waits until everything published so far has been written, then flushes the targets
+	@Override
+	public void flush() {
+		long published = this.head.get();
+		while (this.tail < published && this.writer.isAlive()) {
+			LockSupport.unpark(this.writer);
+			Thread.yield();
+		}
+		for (Handler target : this.targets) {
+			target.flush();
+		}
+	}
+
+	// Writes out what's left and closes the targets.  Records published after this are ignored.
+	@Override
+	public void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Handler target : this.targets) {
+			target.close();
+		}
+	}
+
+	public long GetDroppedCount() {
+		return this.dropped.get();
+	}
+
+	private boolean wanted(LogRecord record) {
+		if (!isLoggable(record)) {
+			return false;
+		}
+		for (Handler target : this.targets) {
+			if (target.isLoggable(record)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// The writer thread
+	private void drain() {
+		long next = 0;
+		long reportedDrops = 0;
+		boolean unflushed = false;
+		while (true) {
+			int index = (int)next & this.mask;
+			LogRecord record = this.ring.get(index);
+			if (record != null) {
+				// The tail only moves once the record is written, so flush() can wait on it
+				this.ring.lazySet(index, null);
+				write(record);
+				this.tail = ++next;
+				unflushed = true;
+				continue;
+			}
+
+			// Caught up (or a producer has claimed the slot and is about to fill it)
+			long drops = this.dropped.get();
+			if (drops != reportedDrops) {
+				write(new LogRecord(Level.WARNING, "AsyncLogHandler: dropped " + (drops - reportedDrops) + " log records"));
+				reportedDrops = drops;
+				unflushed = true;
+			}
+			if (unflushed) {
+				for (Handler target : this.targets) {
+					target.flush();
+				}
+				unflushed = false;
+			}
+			if (this.closed && this.head.get() == next) {
+				return;
+			}
+
+			this.writerIdle = true;
+			if (this.ring.get(index) == null && !this.closed) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+			this.writerIdle = false;
+		}
+	}
+
+	private void write(LogRecord record) {
+		for (Handler target : this.targets) {
+			try {
+				target.publish(record);
+			} catch (RuntimeException e) {
+				reportError(null, e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+}
@@ -2,7 +2,9 @@ package edu.dasizeman.jftp;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 public class Connection {
 	protected Socket socket;
@@ -27,6 +29,15 @@ public class Connection {
 		this.socketOutputStream = this.socket.getOutputStream();
 	}
 	
+	// Same as Connect(), but the socket is backed by a (blocking) SocketChannel so that
+	// callers can use the NIO transfer methods on it
+	protected void ConnectChannel() throws Exception {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(this.host, this.port));
+		this.socket = channel.socket();
+		this.socketInputStream = this.socket.getInputStream();
+		this.socketOutputStream = this.socket.getOutputStream();
+	}
+	
 	// TODO make this a utility, don't modify members directly
 	protected boolean parseHostString(String str) {
 		if (!str.contains(":")) {
@@ -51,6 +62,11 @@ public class Connection {
 	public OutputStream getOutputStream() {
 		return this.socketOutputStream;
 	}
+	
+	// Null if this connection was not opened with ConnectChannel()
+	public SocketChannel getChannel() {
+		return this.socket.getChannel();
+	}
 
 	public void close() throws Exception {
 		this.socket.close();
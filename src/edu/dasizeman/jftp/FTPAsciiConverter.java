@@ -0,0 +1,94 @@
+package edu.dasizeman.jftp;
+
+import java.nio.charset.StandardCharsets;
+
+// TYPE A line ending conversion, done on the bytes as they stream through, so text files
+// don't get decoded into Strings a line at a time.  On the wire lines end in CRLF; locally
+// they end in whatever this platform uses.  A CR at the end of one buffer is held back until
+// the next one shows whether an LF follows it.
+public class FTPAsciiConverter {
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte[] LOCAL_LINE_END = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+	private final boolean toNetwork;
+	private boolean pendingCR, lastWasCR;
+
+	private FTPAsciiConverter(boolean toNetwork) {
+		this.toNetwork = toNetwork;
+	}
+
+	// CRLF to local line endings, for downloads
+	public static FTPAsciiConverter FromNetwork() {
+		return new FTPAsciiConverter(false);
+	}
+
+	// Local line endings to CRLF, for uploads.  Lines that already end in CRLF are left alone.
+	public static FTPAsciiConverter ToNetwork() {
+		return new FTPAsciiConverter(true);
+	}
+
+	// The most Convert() can write for this many bytes of input
+	public static int MaxOutput(int length) {
+		return 2 * length + 1;
+	}
+
+	// Converts length bytes of input into output, which has to hold MaxOutput(length) bytes.
+	// Returns how many were written.
+	public int Convert(byte[] input, int length, byte[] output) {
+		return this.toNetwork ? toNetwork(input, length, output) : fromNetwork(input, length, output);
+	}
+
+	// Writes out anything held back at the end of the data, and returns how many bytes
+	public int Finish(byte[] output) {
+		return Finish(output, 0);
+	}
+
+	// The same, for output that already has offset bytes in it
+	public int Finish(byte[] output, int offset) {
+		if (this.pendingCR) {
+			this.pendingCR = false;
+			output[offset] = CR;
+			return 1;
+		}
+		return 0;
+	}
+
+	private int fromNetwork(byte[] input, int length, byte[] output) {
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = input[i];
+			if (this.pendingCR) {
+				this.pendingCR = false;
+				if (b == LF) {
+					for (byte end : LOCAL_LINE_END) {
+						output[count++] = end;
+					}
+					continue;
+				}
+				// A CR on its own stays
+				output[count++] = CR;
+			}
+			if (b == CR) {
+				this.pendingCR = true;
+			} else {
+				output[count++] = b;
+			}
+		}
+		return count;
+	}
+
+	private int toNetwork(byte[] input, int length, byte[] output) {
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = input[i];
+			if (b == LF && !this.lastWasCR) {
+				output[count++] = CR;
+			}
+			output[count++] = b;
+			this.lastWasCR = (b == CR);
+		}
+		return count;
+	}
+
+}
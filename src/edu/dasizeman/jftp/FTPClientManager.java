@@ -1,27 +1,47 @@
 package edu.dasizeman.jftp;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class FTPClientManager implements ProtocolManager {
 	
 	/* Static */
-	static private FTPClientManager instance;
 	private static Logger logger;
 	
+	// Segments smaller than this aren't worth a session of their own
+	private static final long MIN_SEGMENT_SIZE = 1024*1024;
+	
+	// How long a command that couldn't be sent waits for the replies before it, to find out
+	// whether the server hung up on purpose
+	private static final long SERVER_HANGUP_GRACE_MILLIS = 1000;
+	
 	// The state diagrams that represent behavior of the DFA from a wait state 
 	// according to the FTP RFC
 	static private Map<FTPCommand, StateDiagram> stateDiagrams;
-	static private Map<FTPCommand, FTPClientCommandHandler> FTPCmdMap;
-	static private Map<FTPInterfaceCommand, FTPClientCommandHandler> FTPInterfaceCmdMap;
 	static {
 		logger = Logger.getGlobal();
 		
@@ -39,67 +59,48 @@ public class FTPClientManager implements ProtocolManager {
 		StateDiagram diagramThree = new StateDiagram();
 		
 		// Assign the appropriate transition states based on the first digit
-		// of the response code, for all diagrams
-		for (FTPResponse response: FTPResponse.values()) {
+		// of the response code, for all diagrams.  Codes we don't have an FTPResponse
+		// for get the transition of their class, as RFC 959 intends.
+		for (FTPCommand cmd : FTPCommand.values()) {
 			//1xx
-			if (response.code >= 100 && response.code < 200) {
-				// Map for all commands
-				// On D1, D3, all 1xx responses go to error state regardless of command
-				for (FTPCommand cmd : FTPCommand.values()) {
-					diagramOne.put(new FTPDiagramState(response, cmd), FTPState.ERROR);
-					diagramThree.put(new FTPDiagramState(response, cmd), FTPState.ERROR);
-				}
-				
-				// On D2, all 1xx responses go to wait, regardless of command
-				for (FTPCommand cmd : FTPCommand.values()) {
-					diagramTwo.put(new FTPDiagramState(response, cmd), FTPState.WAIT);
-				}
-				
-			}
+			// On D1, D3, all 1xx responses go to error state regardless of command
+			diagramOne.PutClass(1, cmd, FTPState.ERROR);
+			diagramThree.PutClass(1, cmd, FTPState.ERROR);
+			
+			// On D2, all 1xx responses go to wait, regardless of command
+			diagramTwo.PutClass(1, cmd, FTPState.WAIT);
 			
 			//2xx
 			// On all diagrams, all 2xx responses go to success regardless of command
-			if (response.code >= 200 && response.code < 300) {
-				for (FTPCommand cmd : FTPCommand.values()) {
-					diagramOne.put(new FTPDiagramState(response, cmd), FTPState.SUCCESS);
-					diagramTwo.put(new FTPDiagramState(response, cmd), FTPState.SUCCESS);
-					diagramThree.put(new FTPDiagramState(response, cmd), FTPState.SUCCESS);
-				}
-				
-			}
+			diagramOne.PutClass(2, cmd, FTPState.SUCCESS);
+			diagramTwo.PutClass(2, cmd, FTPState.SUCCESS);
+			diagramThree.PutClass(2, cmd, FTPState.SUCCESS);
 			
 			//3xx
-			if (response.code >= 300 && response.code < 400) {
-				// On D1, D2, all 3xx responses go to error regardless of command
-				for (FTPCommand cmd : FTPCommand.values()) {
-					diagramOne.put(new FTPDiagramState(response, cmd), FTPState.ERROR);
-					diagramTwo.put(new FTPDiagramState(response, cmd), FTPState.ERROR);
-				}
-				
-				// On D3, the transition on a 3xx response is dependent on the current command
-				diagramThree.put(new FTPDiagramState(response, FTPCommand.USER), FTPState.BEGIN);
-				diagramThree.put(new FTPDiagramState(response, FTPCommand.PASS), FTPState.BEGIN);
-				
-				//...but we don't support the ACCT command right now
-				//diagramThree.put(new FTPDiagramState(response, FTPCommand.ACCT), FTPState.BEGIN);
-				
-				
-			}
+			// On D1, D2, all 3xx responses go to error regardless of command
+			diagramOne.PutClass(3, cmd, FTPState.ERROR);
+			diagramTwo.PutClass(3, cmd, FTPState.ERROR);
 			
 			//On all diagrams, all 4xx, 5xx responses go to failure, regardless of command
-			if (response.code >= 400 && response.code < 600) {
-				for (FTPCommand cmd : FTPCommand.values()) {
-					diagramOne.put(new FTPDiagramState(response, cmd), FTPState.FAILURE);
-					diagramTwo.put(new FTPDiagramState(response, cmd), FTPState.FAILURE);
-					diagramThree.put(new FTPDiagramState(response, cmd), FTPState.FAILURE);
-				}
-				
+			for (int firstDigit = 4; firstDigit <= 5; firstDigit++) {
+				diagramOne.PutClass(firstDigit, cmd, FTPState.FAILURE);
+				diagramTwo.PutClass(firstDigit, cmd, FTPState.FAILURE);
+				diagramThree.PutClass(firstDigit, cmd, FTPState.FAILURE);
 			}
-			
 		}
 		
+		// ...except REST, where 350 is the normal reply (RFC 3659 section 5.3)
+		diagramOne.PutClass(3, FTPCommand.REST, FTPState.SUCCESS);
+		
+		// On D3, the transition on a 3xx response is dependent on the current command
+		diagramThree.PutClass(3, FTPCommand.USER, FTPState.BEGIN);
+		diagramThree.PutClass(3, FTPCommand.PASS, FTPState.BEGIN);
+		
+		//...but we don't support the ACCT command right now
+		//diagramThree.PutClass(3, FTPCommand.ACCT, FTPState.BEGIN);
+		
 		// Now we map each command to a diagram
-		stateDiagrams = new HashMap<FTPCommand, StateDiagram>();
+		stateDiagrams = new EnumMap<FTPCommand, StateDiagram>(FTPCommand.class);
 		
 		// TODO Add EPRT and EPSV
 		// ABOR, ALLO, DELE, CWD, CDUP, SMNT, HELP, MODE, NOOP, PASV,
@@ -113,62 +114,128 @@ public class FTPClientManager implements ProtocolManager {
 		stateDiagrams.put(FTPCommand.PWD, diagramOne);
 		stateDiagrams.put(FTPCommand.NOOP, diagramOne);
 		stateDiagrams.put(FTPCommand.EPSV, diagramOne);
+		stateDiagrams.put(FTPCommand.TYPE, diagramOne);
+		stateDiagrams.put(FTPCommand.MODE, diagramOne);
+		stateDiagrams.put(FTPCommand.OPTS, diagramOne);
+		
+		// RFC 3659 commands follow the same diagram
+		stateDiagrams.put(FTPCommand.SIZE, diagramOne);
+		stateDiagrams.put(FTPCommand.REST, diagramOne);
+		stateDiagrams.put(FTPCommand.MLST, diagramOne);
 		
 		// APPE, LIST, NLST, REIN, RETR, STOR, and STOU.
 		stateDiagrams.put(FTPCommand.LIST, diagramTwo);
 		stateDiagrams.put(FTPCommand.RETR, diagramTwo);
+		stateDiagrams.put(FTPCommand.STOR, diagramTwo);
+		stateDiagrams.put(FTPCommand.APPE, diagramTwo);
+		stateDiagrams.put(FTPCommand.MLSD, diagramTwo);
 		
 		// USER, PASS, ACCT
 		stateDiagrams.put(FTPCommand.USER, diagramThree);
 		stateDiagrams.put(FTPCommand.PASS, diagramThree);
 		
-		// Use a dirty reflection trick to build our handler maps
-		FTPCmdMap = new HashMap<FTPCommand, FTPClientCommandHandler>();
-		FTPInterfaceCmdMap = new HashMap<FTPInterfaceCommand, FTPClientCommandHandler>();
-		
 	}
 	
-	public static FTPClientManager getInstance() {
-		if (instance == null) {
-			instance = new FTPClientManager();
-		}
-		
-		return instance;
+	// Where a response to the given command leaves the state machine, from WAIT
+	static FTPState evaluate(FTPCommand cmd, int code) {
+		return stateDiagrams.get(cmd).Get(code, cmd);
 	}
 	
 	/* Instance */
+	
+	// A command that has been sent and is waiting for its final reply.  Its future is
+	// completed by whichever thread delivers that reply, exceptionally if it failed.
+	private static class PendingCommand {
+		private FTPCommand cmd;
+		private String argument;
+		private StateDiagram diagram;
+		private FTPState state;
+		private int code;
+		private final CompletableFuture<Void> reply;
+		
+		// What was sent, since cmd turns into a NOOP while we wait for a second reply.  The
+		// times are System.nanoTime(), or 0 if it hasn't happened yet.
+		private final FTPCommand sent;
+		private long issuedAt, sentAt, repliedAt, completedAt;
+		
+		// Run when the command succeeds, before anyone waiting on it wakes up, or null
+		private Runnable onSuccess;
+		
+		PendingCommand(FTPCommand cmd) {
+			this.cmd = cmd;
+			this.sent = cmd;
+			this.diagram = stateDiagrams.get(cmd);
+			this.state = FTPState.BEGIN;
+			this.reply = new CompletableFuture<Void>();
+		}
+	}
 
-	private FTPDiagramState currentDiagramState;
-	private FTPState currentState;
-	private StateDiagram currentDiagram;
+	private Map<FTPCommand, FTPClientCommandHandler> FTPCmdMap;
+	private Map<FTPInterfaceCommand, FTPClientCommandHandler> FTPInterfaceCmdMap;
 	private FTPExceptionHandler exHandler;
-	private Throwable unhandledException;
+	private volatile Throwable unhandledException;
 	private String currentControlHost, currentDataHost;
-	private boolean controlFinished, dataFinished;
 	private FTPCommand dataMode;
+	
+	// The TYPE files are transferred in, "I" (binary) unless the user asks for "A"
+	private String transferType = "I";
+	
+	// Commands go out without waiting for earlier replies when pipelining, and the server
+	// answers them in order, so each reply belongs to the oldest command in this queue
+	private final ConcurrentLinkedQueue<PendingCommand> outstanding;
+	private volatile PendingCommand lastSent;
+	private boolean pipelining;
+	
+	// Completed at the end of the current data transfer
+	private volatile CompletableFuture<Void> dataTransfer;
+	
+	// Remembered so that extra sessions (segmented downloads) can log in on their own
+	private String currentUser, currentPassword;
+	private long remoteFileSize;
+	
+	// Set while the text coming in on the data connection is MLSD output
+	private volatile boolean machineListing;
+	
+	// Listings we've seen recently, and the lines of the one coming in now if it's to be cached
+	private FTPListingCache listingCache;
+	private volatile List<String> listingLines;
+	
+	// The session the shell is talking to, and the warm ones it has set aside
+	private FTPSession session;
+	private FTPSessionPool pool;
 
 	
 	
 	
 	public FTPClientManager() {
-		this.currentDiagramState = new FTPDiagramState();
-		this.currentState = FTPState.BEGIN;
+		this(new FTPSessionPool(), new FTPListingCache());
+	}
+	
+	public FTPClientManager(FTPSessionPool pool, FTPListingCache listingCache) {
+		this.pool = pool;
+		this.listingCache = listingCache;
 		this.unhandledException = null;
 		this.exHandler = new FTPExceptionHandler();
 		this.exHandler.setFTPManager(this);
-		this.controlFinished = true;
-		this.dataFinished = true;
+		this.outstanding = new ConcurrentLinkedQueue<PendingCommand>();
+		this.lastSent = null;
+		this.pipelining = false;
+		this.dataTransfer = CompletableFuture.completedFuture(null);
 		this.dataMode = FTPCommand.PASV;
 		
 		
+		// Use a dirty reflection trick to build our handler maps
+		this.FTPCmdMap = new HashMap<FTPCommand, FTPClientCommandHandler>();
+		this.FTPInterfaceCmdMap = new HashMap<FTPInterfaceCommand, FTPClientCommandHandler>();
+		
 		// Interface commands
 		for (FTPInterfaceCommand cmd : FTPInterfaceCommand.values()) {
-			FTPClientManager.FTPInterfaceCmdMap.put(cmd, getHandlerInstanceForCommand(cmd.name()));
+			this.FTPInterfaceCmdMap.put(cmd, getHandlerInstanceForCommand(cmd.name()));
 		}
 		
 		// Protocol commands
 		for (FTPCommand cmd : FTPCommand.values()) {
-			FTPClientManager.FTPCmdMap.put(cmd, getHandlerInstanceForCommand(cmd.name()));
+			this.FTPCmdMap.put(cmd, getHandlerInstanceForCommand(cmd.name()));
 		}
 		
 		
@@ -214,7 +281,71 @@ public class FTPClientManager implements ProtocolManager {
 	}
 	
 	private void setException(Throwable e) {
-		this.unhandledException = e;
+		// The first failure is the one worth reporting; whatever follows it is usually fallout
+		if (this.unhandledException == null) {
+			this.unhandledException = e;
+		}
+		
+		// Something went wrong outside the protocol, so nothing in flight is coming back.
+		// Wake up whoever is waiting on us.
+		for (PendingCommand pending : this.outstanding) {
+			pending.reply.completeExceptionally(e);
+		}
+		this.dataTransfer.completeExceptionally(e);
+	}
+	
+	// A failure reply only fails its own command.  The first one is what the shell will see.
+	private void failCommand(PendingCommand pending, Throwable e) {
+		this.outstanding.remove(pending);
+		if (this.unhandledException == null && !pending.reply.isCancelled()) {
+			this.unhandledException = e;
+		}
+		pending.reply.completeExceptionally(e);
+		
+		// If it was the command the data connection was opened for, no data is coming (or
+		// going), and whoever waits for the transfer would wait forever
+		if (usesDataConnection(pending.sent) && !pending.reply.isCancelled()) {
+			this.dataTransfer.completeExceptionally(e);
+			if (this.session != null) {
+				this.session.ResetDataConnection();
+			}
+		}
+	}
+	
+	// Fails everything in flight, and whatever comes next until the shell resets
+	private void serverClosing(String message) {
+		ProtocolException e = new ProtocolException(message);
+		logger.log(Level.WARNING, message);
+		
+		// Before anyone wakes up (or finds the session closed) and goes looking for why
+		if (this.unhandledException == null) {
+			this.unhandledException = e;
+		}
+		if (this.session != null) {
+			this.session.HungUp();
+		}
+		PendingCommand pending;
+		while ((pending = this.outstanding.poll()) != null) {
+			pending.reply.completeExceptionally(e);
+		}
+		this.dataTransfer.completeExceptionally(e);
+	}
+	
+	private static boolean isFileTransfer(FTPCommand cmd) {
+		return cmd == FTPCommand.RETR || cmd == FTPCommand.STOR || cmd == FTPCommand.APPE;
+	}
+	
+	private static boolean usesDataConnection(FTPCommand cmd) {
+		switch (cmd) {
+		case RETR:
+		case STOR:
+		case APPE:
+		case LIST:
+		case MLSD:
+			return true;
+		default:
+			return false;
+		}
 	}
 	
 	
@@ -235,157 +366,229 @@ public class FTPClientManager implements ProtocolManager {
 		// TODO Auto-generated method stub
 		
 	}
+	
+	@Override
+	public void DataTransferFinished() {
+		this.dataTransfer.complete(null);
+	}
 
 	@Override
-	public void TextDataReceived(String data) {
-		for (String line : data.split("\r\n")) {
-			logger.log(Level.INFO, line);
+	public void TextLineReceived(String line) {
+		List<String> lines = this.listingLines;
+		if (lines != null && lines.size() <= FTPListingCache.MAX_CACHED_LINES) {
+			lines.add(line);
 		}
-		this.dataFinished = true;
 		
+		if (this.machineListing) {
+			try {
+				line = FTPListEntry.Parse(line).toString();
+			} catch (ProtocolException e) {
+				// Show it as it came
+			}
+		}
+		logger.log(Level.INFO, line);
 	}
 
 	@Override
 	public void ControlDataReceived(String data) {
+		long receivedAt = System.nanoTime();
+		
+		// A 421 can come at any time (an idle timeout, the server shutting down) and isn't the
+		// answer to any one command.  The server is hanging up, so nothing we're waiting on
+		// will be answered.
+		if (FTPReplyParser.ParseCode(data) == FTPResponse.NOT_AVAIL_CLOSING.code) {
+			serverClosing(data.substring(3));
+			return;
+		}
+		
+		PendingCommand pending = this.outstanding.peek();
+		if (pending == null) {
+			throw new RuntimeException("Received a reply with no command outstanding: " + data);
+		}
+		
+		// The first reply is the server's answer.  A second one (after a 1xx) is timed by the transfer.
+		if (pending.sentAt != 0 && pending.repliedAt == 0) {
+			pending.repliedAt = receivedAt;
+			FTPMetrics.RoundTrip(pending.sent).Record(receivedAt - pending.sentAt);
+		}
+		
 		FTPResponseData responseData;
 		try {
-			responseData = parseControlResponse(data);
+			responseData = parseControlResponse(data, pending.cmd);
+			pending.code = responseData.code;
 			
 			// Transition from WAIT based on our diagram state
-			transition(FTPState.WAIT);
+			transition(pending, FTPState.WAIT);
+			
+			// Replies to commands abandoned by Reset() are only read to keep the rest in order
+			boolean abandoned = pending.reply.isCancelled();
+			
+			// A 1xx (or straight 2xx) to a transfer means the server is really taking part, so
+			// a download's file can be opened and an upload can start streaming
+			if (isFileTransfer(pending.sent) && !abandoned && this.session != null
+					&& (pending.state == FTPState.WAIT || pending.state == FTPState.SUCCESS)) {
+				this.session.DataAccepted();
+			}
 			
 			// Handle whatever terminal state we ended up at
 			String message = responseData.responseMessage;
-			if (this.currentState == FTPState.ERROR || this.currentState == FTPState.SUCCESS) {
+			if (pending.state == FTPState.ERROR || pending.state == FTPState.SUCCESS) {
 				// Either everything is good or is good or some not so bad error happened,
 				// just log and print the message and go back to begin
 				Level level;
-				if (this.currentState == FTPState.SUCCESS) {
+				if (pending.state == FTPState.SUCCESS) {
 					level = Level.INFO;
 				} else {
 					level = Level.WARNING;
 				}
 				
-				logger.log(level, message);
+				if (!abandoned) {
+					logger.log(level, message);
+				}
 				
-				this.currentState = FTPState.BEGIN;
-			} else if (this.currentState == FTPState.FAILURE) {
-				// Ruh roh.  Let's throw our exception so it will be picked up by the shell. 
+				// Even an abandoned command changed the server's state (like its directory)
+				if (pending.state == FTPState.SUCCESS && this.session != null) {
+					this.session.TrackState(pending.cmd, pending.argument, responseData);
+				}
+				if (pending.state == FTPState.SUCCESS && pending.onSuccess != null) {
+					pending.onSuccess.run();
+				}
+				
+				pending.state = FTPState.BEGIN;
+			} else if (pending.state == FTPState.FAILURE) {
+				// Ruh roh.  Fail the command so it will be picked up by the shell. 
 				// This will also cause the state machine to be reset 
-				throw new ProtocolException(message);
-			} else if (this.currentState == FTPState.WAIT) {
-				// If we ended up in WAIT again, receive the command we are waiting for
-				doControlReceive();
+				failCommand(pending, new ProtocolException(message));
+				return;
+			} else if (pending.state == FTPState.WAIT) {
+				// If we ended up in WAIT again, the reply we are waiting for is still to come.
+				// Stay locked, and don't block here: this may be running on the reactor thread,
+				// which is the one that has to deliver that reply.
+				expectControlReceive(pending);
+				return;
 			}
 			
 			// State is now set from this response, we can unlock
-			this.controlFinished = true;
+			this.outstanding.poll();
+			pending.completedAt = System.nanoTime();
+			pending.reply.complete(null);
 			
 		} catch (Throwable e) {
-			throw new RuntimeException(e.getMessage());
+			failCommand(pending, new RuntimeException(e.getMessage()));
 		}
 	}
 
 	
-	private FTPResponseData parseControlResponse(String responseStr) throws ProtocolException {
-		// TODO Parse to an FTPResponse
-		// Set the current diagram state's response
-		
-		// First let's separate the code and the message by using our old friend Mr. Reginald Xavior
-		Pattern responsePattern = Pattern.compile("^(\\d+)(.*)", Pattern.DOTALL);
-		Matcher responseMatcher = responsePattern.matcher(responseStr);
-		
-		if (!responseMatcher.find() || responseMatcher.groupCount() < 1) {
-			throw new ProtocolException("Got response from server without a response code");
-		}
-		
-		int responseCode = Integer.parseInt(responseMatcher.group(1));
-		
-		// Look if we have a specific response for this code
-		FTPResponse response = FTPResponse.getByCode(responseCode);
-		
-		
-		if (response == null) {
-			throw new ProtocolException("Received unknown repsonse code");
-		}
+	private FTPResponseData parseControlResponse(String responseStr, FTPCommand cmd) throws ProtocolException {
+		FTPResponseData responseData = parseResponse(responseStr);
+		FTPResponse response = responseData.response;
+		String responseMessage = responseData.responseMessage;
 
-		// Set the diagram state's response field
-		this.currentDiagramState.response = response;
-		
-		String responseMessage = "";
-		if (responseMatcher.groupCount() > 1) {
-			responseMessage = responseMatcher.group(2);
-		}
-		
 		// TODO this is where we check if this response has any side effects (like setting our data connection for PASV),
 		// and do them
 		if (response == FTPResponse.ENTERING_PASV) {
 			this.currentDataHost = parsePASVResponse(responseMessage);
 			this.dataMode = FTPCommand.PASV;
 		} else if (response == FTPResponse.ENTERING_EPSV) {
-			this.currentDataHost = parseEPSVResponse(responseMessage);
+			this.currentDataHost = parseEPSVResponse(this.currentControlHost, responseMessage);
 			this.dataMode = FTPCommand.EPSV;
+		} else if (response == FTPResponse.FILE_STATUS && cmd == FTPCommand.SIZE) {
+			this.remoteFileSize = parseSIZEResponse(responseMessage);
 		}
 		
 		
-		return new FTPResponseData(response, responseMessage);
+		return responseData;
 	}
 	
-	private String parsePASVResponse(String response) throws ProtocolException {
-		Pattern pasvPattern = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
-		Matcher pasvMatcher = pasvPattern.matcher(response);
-		if (!pasvMatcher.find() || pasvMatcher.groupCount() < 6) {
-			throw new ProtocolException("Could not parse PASV reponse");
+	// Separates a response into its code and message
+	static FTPResponseData parseResponse(String responseStr) throws ProtocolException {
+		int responseCode = FTPReplyParser.ParseCode(responseStr);
+		if (responseCode < 0) {
+			throw new ProtocolException("Got response from server without a response code");
 		}
 		
-		StringBuffer hostStr = new StringBuffer();
-		// Build IPv4 segment
-		for (int i = 1; i <= 4; i++) {
-			hostStr.append(pasvMatcher.group(i));
-			if (i == 4) {
-				hostStr.append(":");
-			} else {
-				hostStr.append(".");
-			}
+		// Codes outside of 1xx-5xx aren't FTP replies at all
+		if (responseCode < StateDiagram.MIN_CODE || responseCode > StateDiagram.MAX_CODE) {
+			throw new ProtocolException("Received unknown repsonse code");
 		}
 		
-		// Build port string
-		String portString = Integer.toString((256 * Integer.parseInt(pasvMatcher.group(5)) + Integer.parseInt(pasvMatcher.group(6))));
-		hostStr.append(portString);
+		// Look if we have a specific response for this code.  If not, the state diagrams
+		// go by its first digit.
+		FTPResponse response = FTPResponse.getByCode(responseCode);
 		
-		return hostStr.toString();
+		return new FTPResponseData(responseCode, response, responseStr.substring(3));
+	}
+	
+	static String parsePASVResponse(String response) throws ProtocolException {
+		String host = FTPReplyParser.ParsePASV(response);
+		if (host == null) {
+			throw new ProtocolException("Could not parse PASV reponse");
+		}
+		return host;
 	}
 	
-	private String parseEPSVResponse (String response) throws ProtocolException {
-		Pattern epsvPattern = Pattern.compile("...(\\d+).");
-		Matcher epsvMatcher = epsvPattern.matcher(response);
-		if (!epsvMatcher.find() || epsvMatcher.groupCount() < 1) {
+	static String parseEPSVResponse (String controlHost, String response) throws ProtocolException {
+		int port = FTPReplyParser.ParseEPSVPort(response);
+		if (port < 0) {
 			throw new ProtocolException("Could not parse EPSV command.");
 		}
 		
-		String ip = this.currentControlHost.replaceFirst(":\\d+", "");
-		return ip + ":" + epsvMatcher.group(1);
+		// Same address as the control connection, new port
+		int portStart = controlHost.lastIndexOf(':');
+		String ip = (portStart < 0) ? controlHost : controlHost.substring(0, portStart);
+		return ip + ":" + port;
+	}
+	
+	// The directory is the quoted part of a 257 reply, with embedded quotes doubled
+	static String parsePWDResponse(String response) throws ProtocolException {
+		int start = response.indexOf('"');
+		if (start < 0) {
+			throw new ProtocolException("Could not parse PWD response");
+		}
+		StringBuffer path = new StringBuffer();
+		for (int i = start + 1; i < response.length(); i++) {
+			char c = response.charAt(i);
+			if (c == '"') {
+				if (i + 1 < response.length() && response.charAt(i + 1) == '"') {
+					path.append('"');
+					i++;
+					continue;
+				}
+				return path.toString();
+			}
+			path.append(c);
+		}
+		throw new ProtocolException("Could not parse PWD response");
+	}
+	
+	static long parseSIZEResponse(String response) throws ProtocolException {
+		try {
+			return Long.parseLong(response.trim());
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Could not parse SIZE response");
+		}
 	}
 	
 	/* State machine */
 
 	public boolean IsReady() {
-		return this.controlFinished && this.dataFinished;
+		PendingCommand last = this.lastSent;
+		return (last == null || last.reply.isDone()) && this.dataTransfer.isDone();
 	}
 	
 
-	private void transition(FTPState expected) throws Throwable {
-		if (this.currentState != expected) {
-			throw new ProtocolException("State machine expected " + expected.name() + ", got " + this.currentState.name());
+	private void transition(PendingCommand pending, FTPState expected) throws ProtocolException {
+		if (pending.state != expected) {
+			throw new ProtocolException("State machine expected " + expected.name() + ", got " + pending.state.name());
 		}
-		switch (this.currentState) {
+		switch (pending.state) {
 		case BEGIN:
-			this.currentState = FTPState.WAIT;
+			pending.state = FTPState.WAIT;
 			break;
 			
 		case WAIT:
-			// Change state based on the current state diagram
-			this.currentState = this.currentDiagram.get(this.currentDiagramState);
+			// Change state based on the command's state diagram
+			pending.state = pending.diagram.Get(pending.code, pending.cmd);
 			break;
 			
 		default:
@@ -397,24 +600,61 @@ public class FTPClientManager implements ProtocolManager {
 	}
 	
 	
-	// Waits until the state machine is ready for a new command and throws any
-	// exceptions that occur.
+	// Waits until every command sent so far has its reply, and any data transfer is done,
+	// and throws any exceptions that occur.  Replies come back in order, so the newest
+	// command is the last to finish.
+	// Gives a reply that's already on its way a moment to arrive, and throws the failure it
+	// brought, if any
+	private void awaitReply(PendingCommand pending) throws Throwable {
+		try {
+			pending.reply.get(SERVER_HANGUP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException | CancellationException | TimeoutException e) {
+			// Only what was recorded as the first failure matters
+		}
+		CheckException();
+	}
+	
 	private void waitForReady() throws Throwable {
-		while(!IsReady()) {
+		PendingCommand last = this.lastSent;
+		try {
+			if (last != null) {
+				last.reply.get();
+			}
+			this.dataTransfer.get();
+		} catch (ExecutionException e) {
+			// An earlier failure is the more useful one to report
 			CheckException();
-			Thread.sleep(100);
+			throw e.getCause();
+		} catch (CancellationException e) {
+			// Reset() while we were waiting
 		}
+		CheckException();
 	}
 	
 	
 	@Override
 	public void Reset() {
-		this.currentState = FTPState.BEGIN;
-		this.currentDiagramState = new FTPDiagramState();
-		this.controlFinished = true;
-		this.dataFinished = true;
+		// Commands still in flight will get their replies anyway.  Leave them queued so those
+		// replies are matched up and dropped, instead of being taken for the next command's.
+		for (PendingCommand pending : this.outstanding) {
+			pending.reply.cancel(false);
+		}
+		this.dataTransfer.complete(null);
+		this.dataTransfer = CompletableFuture.completedFuture(null);
 		this.unhandledException = null;
-		FTPConnection.ResetDataConnection();
+		this.pipelining = false;
+		if (this.session != null) {
+			this.session.ResetDataConnection();
+		}
+	}
+	
+	// Forgets about everything in flight, when switching to another session
+	private void clearOutstanding() {
+		for (PendingCommand pending : this.outstanding) {
+			pending.reply.cancel(false);
+		}
+		this.outstanding.clear();
+		this.lastSent = null;
 	}
 	
 	
@@ -422,10 +662,6 @@ public class FTPClientManager implements ProtocolManager {
 	/* Sending commands */
 	
 	public void ParseAndExecuteInterfaceCommand(String command) throws Throwable {
-		if (this.currentState != FTPState.BEGIN) {
-			throw new ProtocolException("State machine not in BEGIN when sending command");
-		}
-		
 		String[] tokens = command.split(" ");
 		if (tokens.length < 1) {
 			throw new Exception("Command parsing got 0 tokens...what?");
@@ -434,61 +670,165 @@ public class FTPClientManager implements ProtocolManager {
 		String baseCommandStr = tokens[0].toLowerCase();
 		
 		if(FTPInterfaceCommand.getByAlias(baseCommandStr) == null) {
+			Shell.FlushLog();
 			System.out.println("Unsupported command: " + baseCommandStr);
-			Reset();
+			// A script with a typo in it shouldn't carry on and exit 0
+			if (!Shell.IsInteractive()) {
+				badCommand();
+			}
 			return;
 		}
 		
 		String[] cmdArgs = Arrays.copyOfRange(tokens, 1, tokens.length);
 		
 		FTPInterfaceCommand cmd = FTPInterfaceCommand.getByAlias(baseCommandStr);
-		FTPClientManager.FTPInterfaceCmdMap.get(cmd).handle(cmdArgs);
+		this.FTPInterfaceCmdMap.get(cmd).handle(cmdArgs);
 	}
 
+	private FTPSession currentSession() throws ProtocolException {
+		if (this.session == null) {
+			throw new ProtocolException("Must connect first.");
+		}
+		if (this.session.IsHungUp()) {
+			throw new ProtocolException("The server closed the connection.  Connect again.");
+		}
+		return this.session;
+	}
+	
 	private void sendControlMessage(String message) throws Exception {
-		FTPConnection connection = FTPConnection.getControlInstance(this.currentControlHost);
+		FTPConnection connection = currentSession().GetControlConnection();
 		connection.SetProtocolManager(this);
 		connection.SetExceptionHandler(this.exHandler);
+		
+		// Stamped before the write, since the reply can be handled before SendCommand() returns
+		PendingCommand pending = this.lastSent;
+		if (!message.equals("") && pending != null && pending.sentAt == 0) {
+			pending.sentAt = System.nanoTime();
+		}
 		connection.SendCommand(message);
 	}
 	
-	private void receiveData(String file) throws Exception {
+	private void receiveData(String file) throws Throwable {
+		receiveData(file, false);
+	}
+	
+	private void receiveData(String file, boolean append) throws Throwable {
 		if (file == null)
 			file = "";
+		
+		// We need the reply to PASV/EPSV before we know where to connect
+		flushPipeline();
 		if (this.currentDataHost == null || this.dataMode == null) {
 			throw new ProtocolException("No data connection is configured.  Try the 'passive' command");
 		}
 		// Set up a data connection
-		FTPConnection dataConnection = FTPConnection.getDataInstance(currentDataHost, dataMode);
+		FTPConnection dataConnection = currentSession().OpenDataConnection(currentDataHost, dataMode);
 		dataConnection.SetProtocolManager(this);
 		dataConnection.SetExceptionHandler(this.exHandler);
-		dataConnection.ReadData(file);
+		this.dataTransfer = new CompletableFuture<Void>();
+		dataConnection.ReadData(file, append);
 		
 	}
 	
+	private void sendData(String file) throws Throwable {
+		// We need the reply to PASV/EPSV before we know where to connect
+		flushPipeline();
+		if (this.currentDataHost == null || this.dataMode == null) {
+			throw new ProtocolException("No data connection is configured.  Try the 'passive' command");
+		}
+		if (!new File(file).isFile()) {
+			throw new Exception("No such local file: " + file);
+		}
+		// Set up a data connection
+		FTPConnection dataConnection = currentSession().OpenDataConnection(currentDataHost, dataMode);
+		dataConnection.SetProtocolManager(this);
+		dataConnection.SetExceptionHandler(this.exHandler);
+		this.dataTransfer = new CompletableFuture<Void>();
+		dataConnection.SendData(file);
+	}
+	
+	// Runs several interface commands as one pipelined batch.  A batch inside a batch (like
+	// in a script) just joins the outer one.
+	@Override
+	public void Pipeline(List<String> commands) throws Throwable {
+		boolean nested = this.pipelining;
+		this.pipelining = true;
+		try {
+			for (String command : commands) {
+				try {
+					ParseAndExecuteInterfaceCommand(command);
+				} catch (Throwable e) {
+					// A failure that was already on its way (like the server hanging up) is
+					// usually what this one comes from
+					CheckException();
+					throw e;
+				}
+			}
+		} finally {
+			this.pipelining = nested;
+		}
+		if (!nested) {
+			waitForReady();
+		}
+	}
+	
+	// Outside of a batch this is a no-op, since every command waits for its reply
+	private void flushPipeline() throws Throwable {
+		if (this.pipelining) {
+			waitForReady();
+		}
+	}
+	
 	// Wrapper that calls the correct handler for an FTP Protocol command and sets state diagram info appropriately
 	private void doProtocolCommand(FTPCommand cmd, String[] args) throws Throwable {
-		// "Lock" the state machine thread until we've received a response and set state, or failed.
-		this.controlFinished= false;
-
-		if (!FTPConnection.HasControlInstance()) {
-			throw new ProtocolException("Must connect first.");
-		}
+		doProtocolCommand(cmd, args, null);
+	}
+	
+	private void doProtocolCommand(FTPCommand cmd, String[] args, Runnable onSuccess) throws Throwable {
+		currentSession();
 
-		// Set the current state diagram
-		this.currentDiagram = stateDiagrams.get(cmd);
-		
-		// Set the diagram state's command field
-		this.currentDiagramState.cmd = cmd;
+		// "Lock" the state machine thread until we've received a response and set state, or failed.
+		PendingCommand pending = new PendingCommand(cmd);
+		pending.argument = String.join(" ", args);
+		pending.onSuccess = onSuccess;
+		pending.issuedAt = System.nanoTime();
 		
 		// We should be in BEGIN, go to WAIT
-		transition(FTPState.BEGIN);
+		transition(pending, FTPState.BEGIN);
+		
+		// Queue it before it goes out, so its reply has somewhere to go
+		PendingCommand previous = this.lastSent;
+		this.outstanding.add(pending);
+		this.lastSent = pending;
 		
 		// Invoke the handler with the arguments
-		FTPCmdMap.get(cmd).handle(args);
+		try {
+			FTPCmdMap.get(cmd).handle(args);
+		} catch (Throwable e) {
+			this.outstanding.remove(pending);
+			pending.reply.cancel(false);
+			if (e instanceof IOException && previous != null) {
+				// The connection broke under us.  If the server hung up, why (like a 421) may
+				// still be on its way, and says more than a broken pipe.
+				awaitReply(previous);
+			}
+			throw e;
+		}
 		
-		// Wait for the state machine to be ready 
-		waitForReady();
+		// Wait for the state machine to be ready, unless we're pipelining
+		if (!this.pipelining) {
+			waitForReady();
+			recordOverhead(pending);
+		}
+	}
+	
+	// Everything but the round trip and the data transfer: from the shell asking for the
+	// command until it went out, and from the last reply being handled until we woke up
+	private void recordOverhead(PendingCommand pending) {
+		if (pending.sentAt != 0 && pending.completedAt != 0) {
+			long now = System.nanoTime();
+			FTPMetrics.ClientOverhead(pending.sent).Record((pending.sentAt - pending.issuedAt) + (now - pending.completedAt));
+		}
 	}
 	
 	// Special case here, we will "send" a blank message to initiate the connection
@@ -496,13 +836,22 @@ public class FTPClientManager implements ProtocolManager {
 	// so that everything works.  A little hacky.
 	// For intermediate reposnes, and the greeting
 	private void doControlReceive() throws Throwable {
-		controlFinished = false;
-		currentDiagram = stateDiagrams.get(FTPCommand.NOOP);
-		currentDiagramState.cmd = FTPCommand.NOOP;
+		PendingCommand pending = new PendingCommand(FTPCommand.NOOP);
+		pending.state = FTPState.WAIT;
+		this.outstanding.add(pending);
+		this.lastSent = pending;
 		sendControlMessage("");
 		waitForReady();
 	}
 	
+	// Non-blocking version of doControlReceive(), for an intermediate reply that is
+	// followed by the real one
+	private void expectControlReceive(PendingCommand pending) throws Exception {
+		pending.cmd = FTPCommand.NOOP;
+		pending.diagram = stateDiagrams.get(FTPCommand.NOOP);
+		sendControlMessage("");
+	}
+	
 	private void badCommand() throws Exception {
 		throw new Exception("Incorrect command syntax.  See 'help' for details");
 	}
@@ -525,9 +874,35 @@ public class FTPClientManager implements ProtocolManager {
 			if(command.length < 1) {
 				throw new Exception("connect: no host provided");
 			}
-			currentControlHost = command[0];
 			
-			transition(FTPState.BEGIN);
+			// Set the current session aside, we might come back to it.  Not if it still has
+			// replies on the way though, since they'd be read as replies to someone else's commands.
+			if (session != null) {
+				if (outstanding.isEmpty() && !session.IsHungUp()) {
+					pool.Release(session);
+				} else {
+					pool.Discard(session);
+				}
+				session = null;
+			}
+			clearOutstanding();
+			currentControlHost = FTPSession.NormalizeHost(command[0]);
+			currentDataHost = null;
+			
+			// If we've been here before, pick up where we left off
+			FTPSession warmSession = pool.Acquire(currentControlHost, null);
+			if (warmSession != null) {
+				session = warmSession;
+				currentUser = session.GetUser();
+				currentPassword = session.GetPassword();
+				logger.log(Level.INFO, "Reusing session to " + currentControlHost + " as " + currentUser);
+				return;
+			}
+			
+			session = new FTPSession(currentControlHost);
+			currentUser = null;
+			currentPassword = null;
+			
 			doControlReceive();
 		}
 		
@@ -551,6 +926,12 @@ public class FTPClientManager implements ProtocolManager {
 			
 			// Send a PASS FTP command
 			doProtocolCommand(FTPCommand.PASS, new String[]{parsed.get("-p")});
+			
+			// Only remember these once they've worked
+			flushPipeline();
+			currentUser = parsed.get("-u");
+			currentPassword = parsed.get("-p");
+			session.SetCredentials(currentUser, currentPassword);
 		}
 		
 	}
@@ -586,8 +967,17 @@ public class FTPClientManager implements ProtocolManager {
 		@Override
 		public void handle(String[] command) throws Throwable {
 			
-			// Send QUIT FTP command
-			doProtocolCommand(FTPCommand.QUIT, command);
+			// Send QUIT FTP command, unless the server has already hung up on us
+			if (session != null) {
+				if (!session.IsHungUp()) {
+					doProtocolCommand(FTPCommand.QUIT, command);
+				}
+				pool.Discard(session);
+				session = null;
+			}
+			
+			// Say goodbye to the sessions we set aside too
+			pool.Close();
 		}
 		
 	}
@@ -620,23 +1010,336 @@ public class FTPClientManager implements ProtocolManager {
 		}
 		
 	}
-	public class GET_CMDhandler implements FTPClientCommandHandler {
+	// "type binary" or "type ascii": how files are sent and received from now on.  The TYPE
+	// command itself goes out with the next transfer that needs it.
+	public class TYPE_CMDhandler implements FTPClientCommandHandler {
 
 		@Override
 		public void handle(String[] command) throws Throwable {
 			if (command.length != 1) {
 				badCommand();
 			}
+			switch (command[0].toLowerCase(Locale.ROOT)) {
+			case "binary":
+			case "i":
+				transferType = "I";
+				break;
+			case "ascii":
+			case "a":
+				transferType = "A";
+				break;
+			default:
+				badCommand();
+			}
+		}
+		
+	}
+	// "mode z [level]" or "mode s".  The mode belongs to the session, so sessions we go back
+	// to keep theirs.
+	public class MODE_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			if (command.length < 1 || command.length > 2) {
+				badCommand();
+			}
+			String mode = command[0].toUpperCase(Locale.ROOT);
+			if (!mode.equals("S") && !mode.equals("Z")) {
+				badCommand();
+			}
 			
-			// Prepare the data connection
-			receiveData(command[0]);
+			if (command.length == 2 && (!mode.equals("Z") || !command[1].matches("[0-9]"))) {
+				badCommand();
+			}
+			
+			doProtocolCommand(FTPCommand.MODE, new String[]{mode});
+			if (command.length == 2) {
+				// Ours for uploads, and the server's for everything else if it takes it
+				currentSession().SetCompressionLevel(Integer.parseInt(command[1]));
+				doProtocolCommand(FTPCommand.OPTS, new String[]{"MODE", "Z", "LEVEL", command[1]});
+			}
+		}
+		
+	}
+	public class GET_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			int segments = 0;
+			boolean resume = false;
+			FTPRateLimiter limit = null;
+			int i = 0;
+			for (; i < command.length - 1 && command[i].startsWith("-"); i++) {
+				if (command[i].equals("-n") && segments == 0 && !resume) {
+					try {
+						segments = Integer.parseInt(command[++i]);
+					} catch (NumberFormatException e) {
+						segments = 0;
+					}
+					if (segments < 1) {
+						badCommand();
+					}
+				} else if (command[i].equals("-c") && segments == 0) {
+					resume = true;
+				} else if (command[i].equals("-r") && limit == null) {
+					limit = transferLimit(command[++i]);
+				} else {
+					badCommand();
+				}
+			}
+			if (i != command.length - 1) {
+				badCommand();
+			}
+			String path = command[i];
 			
-			// Do  a RETR FTP command
-			doProtocolCommand(FTPCommand.RETR, command);
+			if (segments > 0) {
+				segmentedGet(path, segments, limit);
+				return;
+			}
 			
+			// The data connection picks up the limit when it's opened
+			if (limit != null) {
+				currentSession().LimitTransfers(limit);
+			}
+			try {
+				if (resume) {
+					resumeGet(path);
+					return;
+				}
+				
+				// Prepare the data connection
+				ensureType(transferType);
+				receiveData(path);
+				
+				// Do  a RETR FTP command
+				doProtocolCommand(FTPCommand.RETR, new String[]{path});
+			} finally {
+				if (limit != null) {
+					currentSession().LimitTransfers(null);
+				}
+			}
+		}
+		
+	}
+	
+	// The limit for "-r <rate>".  Each transfer gets its own bucket.
+	private FTPRateLimiter transferLimit(String rate) throws Exception {
+		long bytesPerSecond = FTPRateLimiter.ParseRate(rate);
+		if (bytesPerSecond <= 0) {
+			badCommand();
+		}
+		return new FTPRateLimiter(bytesPerSecond);
+	}
+	
+	// Sends TYPE unless the session is known to be in that type already.  Must come before
+	// the data connection is opened, since that's when the connection learns the type.
+	private void ensureType(String type) throws Throwable {
+		if (!type.equals(currentSession().GetType())) {
+			doProtocolCommand(FTPCommand.TYPE, new String[]{type});
+		}
+	}
+	
+	// Continues a download that was cut off, by asking the server to restart the transfer
+	// at the length of what we already have
+	private void resumeGet(String path) throws Throwable {
+		doProtocolCommand(FTPCommand.SIZE, new String[]{path});
+		flushPipeline();
+		long remoteSize = this.remoteFileSize;
+		long localSize = new File(path).length();
+		
+		if (localSize == remoteSize) {
+			logger.log(Level.INFO, path + " is already complete (" + localSize + " bytes)");
+			return;
+		}
+		
+		if (localSize > remoteSize) {
+			// Not a partial copy of this file, so start over
+			logger.log(Level.WARNING, path + " is larger than the remote file, downloading it again");
+			ensureType(this.transferType);
+			receiveData(path);
+			doProtocolCommand(FTPCommand.RETR, new String[]{path});
+			return;
+		}
+		
+		// Offsets only mean something in binary mode
+		ensureType("I");
+		if (localSize > 0) {
+			logger.log(Level.INFO, "Resuming " + path + " at " + localSize + " of " + remoteSize + " bytes");
+			doProtocolCommand(FTPCommand.REST, new String[]{Long.toString(localSize)});
+		}
+		receiveData(path, localSize > 0);
+		doProtocolCommand(FTPCommand.RETR, new String[]{path});
+	}
+	
+	// Downloads a file over several sessions at once, each one fetching its own byte range
+	// with REST + RETR into its region of a preallocated local file.  The segments share
+	// limit, if there is one, so it caps the download as a whole.
+	private void segmentedGet(final String path, int segments, final FTPRateLimiter limit) throws Throwable {
+		if (this.currentUser == null) {
+			throw new ProtocolException("Must log in before a segmented download.");
+		}
+		// Segments are byte ranges, and line ending conversion would move them around
+		if (!this.transferType.equals("I")) {
+			throw new ProtocolException("Segmented downloads need type binary.");
+		}
+		
+		// The extra sessions need to start where we are, and to know how much to fetch
+		doProtocolCommand(FTPCommand.PWD, new String[0]);
+		doProtocolCommand(FTPCommand.SIZE, new String[]{path});
+		flushPipeline();
+		final long size = this.remoteFileSize;
+		final String directory = currentSession().GetWorkingDirectory();
+		
+		// Don't bother splitting small files too finely
+		long maxSegments = Math.max(1, size / MIN_SEGMENT_SIZE);
+		if (segments > maxSegments) {
+			segments = (int)maxSegments;
+		}
+		final long segmentSize = size / segments;
+		
+		RandomAccessFile localFile = new RandomAccessFile(path, "rw");
+		ExecutorService executor = Executors.newFixedThreadPool(segments);
+		long start = System.nanoTime();
+		try {
+			localFile.setLength(size);
+			final FileChannel channel = localFile.getChannel();
+			
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (int i = 0; i < segments; i++) {
+				final long offset = i * segmentSize;
+				final boolean last = (i == segments - 1);
+				final long length = last ? size - offset : segmentSize;
+				results.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						FTPSession segmentSession = pool.Acquire(currentControlHost, currentUser, currentPassword);
+						try {
+							segmentSession.Execute(FTPCommand.CWD, directory);
+							segmentSession.UseBinaryStream();
+							segmentSession.LimitTransfers(limit);
+							long received = segmentSession.RetrieveSegment(path, channel, offset, length, last);
+							segmentSession.LimitTransfers(null);
+							pool.Release(segmentSession);
+							return received;
+						} catch (Exception e) {
+							pool.Discard(segmentSession);
+							throw e;
+						}
+					}
+				}));
+			}
+			
+			long total = 0;
+			for (Future<Long> result : results) {
+				try {
+					total += result.get();
+				} catch (ExecutionException e) {
+					throw e.getCause();
+				}
+			}
+			
+			long millis = (System.nanoTime() - start) / 1000000;
+			logger.log(Level.INFO, "Received " + total + " bytes to " + path + " over " + segments 
+					+ " sessions in " + millis + " ms");
+		} finally {
+			executor.shutdownNow();
+			localFile.close();
+		}
+	}
+	
+	public class MIRROR_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			int sessions = FTPMirror.DEFAULT_SESSIONS;
+			String[] paths = command;
+			if (command.length == 4 && command[0].equals("-n")) {
+				try {
+					sessions = Integer.parseInt(command[1]);
+				} catch (NumberFormatException e) {
+					sessions = 0;
+				}
+				paths = Arrays.copyOfRange(command, 2, command.length);
+			}
+			if (paths.length != 2 || sessions < 1) {
+				badCommand();
+			}
+			if (currentUser == null) {
+				throw new ProtocolException("Must log in before mirroring.");
+			}
+			
+			// The mirror's own sessions start wherever the server puts them, so they get absolute paths
+			flushPipeline();
+			String remoteDirectory = FTPSession.ResolvePath(workingDirectory(), paths[0]);
+			new FTPMirror(pool, currentControlHost, currentUser, currentPassword, sessions).Run(remoteDirectory, paths[1]);
 		}
 		
 	}
+	
+	public class PUT_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			upload(FTPCommand.STOR, command);
+			
+		}
+		
+	}
+	public class APPEND_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			upload(FTPCommand.APPE, command);
+			
+		}
+		
+	}
+	
+	// put and append only differ in the protocol command
+	private void upload(FTPCommand cmd, String[] command) throws Throwable {
+		FTPRateLimiter limit = null;
+		if (command.length > 2 && command[0].equals("-r")) {
+			limit = transferLimit(command[1]);
+			command = Arrays.copyOfRange(command, 2, command.length);
+		}
+		if (command.length < 1 || command.length > 2) {
+			badCommand();
+		}
+		
+		// Unless told otherwise, the remote file gets the local file's name
+		String remoteName = (command.length == 2) ? command[1] : new File(command[0]).getName();
+		
+		// Where it lands, for the listing cache
+		flushPipeline();
+		final FTPSession session = currentSession();
+		String remotePath = FTPSession.ResolvePath(session.GetWorkingDirectory(), remoteName);
+		final String directory = (remotePath == null) ? null : FTPSession.ResolvePath(remotePath, "..");
+		
+		// Open the data connection.  Nothing is streamed until the server takes the STOR
+		// or APPE.
+		ensureType(this.transferType);
+		session.LimitTransfers(limit);
+		try {
+			sendData(command[0]);
+		} finally {
+			session.LimitTransfers(null);
+		}
+		
+		// Do a STOR or APPE FTP command.  Whatever we had cached for the directory is out of
+		// date once the server says the file is stored.
+		final FTPListingCache cache = this.listingCache;
+		doProtocolCommand(cmd, new String[]{remoteName}, new Runnable() {
+			@Override
+			public void run() {
+				if (directory == null) {
+					cache.InvalidateSession(session);
+				} else {
+					cache.Invalidate(session, directory);
+				}
+			}
+		});
+	}
+	
 	public class PWD_CMDhandler implements FTPClientCommandHandler {
 
 		@Override
@@ -652,13 +1355,105 @@ public class FTPClientManager implements ProtocolManager {
 		public void handle(String[] command) throws Throwable {
 			
 			// Send a LIST FTP command
+			listDirectory(FTPCommand.LIST, command);
+		}
+		
+	}
+	public class MLSD_CMDhandler implements FTPClientCommandHandler {
 
-			dataFinished = false;
-			receiveData("");
-			doProtocolCommand(FTPCommand.LIST, command);
+		@Override
+		public void handle(String[] command) throws Throwable {
+			
+			// Send an MLSD FTP command, and show the entries it returns parsed
+			listDirectory(FTPCommand.MLSD, command);
 		}
 		
 	}
+	public class MLST_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			doProtocolCommand(FTPCommand.MLST, command);
+		}
+		
+	}
+	public class REFRESH_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			if (command.length == 0) {
+				listingCache.Clear();
+				return;
+			}
+			
+			flushPipeline();
+			FTPSession session = currentSession();
+			String path = FTPSession.ResolvePath(session.GetWorkingDirectory(), command[0]);
+			if (path == null) {
+				listingCache.InvalidateSession(session);
+			} else {
+				listingCache.Invalidate(session, path);
+			}
+		}
+		
+	}
+	
+	// Shows a listing, from the cache if we've seen the directory recently
+	private void listDirectory(final FTPCommand cmd, String[] args) throws Throwable {
+		// Earlier commands in a batch (like a cd) decide which directory this is
+		flushPipeline();
+		final FTPSession session = currentSession();
+		final String path = cacheablePath(session, args);
+		
+		if (path != null) {
+			List<String> cached = this.listingCache.Get(session, cmd, path);
+			if (cached != null) {
+				logger.log(Level.FINE, "Listing " + path + " from cache");
+				this.listingLines = null;
+				this.machineListing = (cmd == FTPCommand.MLSD);
+				for (String line : cached) {
+					TextLineReceived(line);
+				}
+				return;
+			}
+		}
+		
+		receiveData("");
+		this.machineListing = (cmd == FTPCommand.MLSD);
+		final List<String> lines = (path != null) ? new ArrayList<String>() : null;
+		this.listingLines = lines;
+		doProtocolCommand(cmd, args);
+		
+		// Only cache listings that made it all the way through
+		if (path != null) {
+			CompletableFuture.allOf(this.lastSent.reply, this.dataTransfer).thenRun(new Runnable() {
+				@Override
+				public void run() {
+					listingCache.Put(session, cmd, path, lines);
+				}
+			});
+		}
+	}
+	
+	// The absolute path a listing is for, or null if it shouldn't be cached (like when LIST
+	// is given options)
+	private String cacheablePath(FTPSession session, String[] args) throws Throwable {
+		if (!this.listingCache.IsEnabled() || args.length > 1 || (args.length == 1 && args[0].startsWith("-"))) {
+			return null;
+		}
+		// One PWD is still cheaper than a data connection for every listing
+		return FTPSession.ResolvePath(workingDirectory(), (args.length == 1) ? args[0] : "");
+	}
+	
+	// The session's working directory, asking the server if we don't know it yet
+	private String workingDirectory() throws Throwable {
+		if (currentSession().GetWorkingDirectory() == null) {
+			doProtocolCommand(FTPCommand.PWD, new String[0]);
+			flushPipeline();
+		}
+		return currentSession().GetWorkingDirectory();
+	}
+	
 	public class SERVERHELP_CMDhandler implements FTPClientCommandHandler {
 
 		@Override
@@ -668,14 +1463,97 @@ public class FTPClientManager implements ProtocolManager {
 			
 		}
 		
+	}
+	// "batch { cmd; cmd; ... }".  Protocol commands are sent back to back without waiting for
+	// replies, and everything is waited for at the end.  Commands that need an earlier reply
+	// (a data transfer needs the PASV reply) wait for what's in flight first.  A failure in the
+	// middle doesn't stop the commands that were already sent.
+	public class BATCH_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			String body = String.join(" ", command).trim();
+			if (!body.startsWith("{") || !body.endsWith("}")) {
+				badCommand();
+			}
+			
+			List<String> commands = new ArrayList<String>();
+			for (String subCommand : body.substring(1, body.length() - 1).split(";")) {
+				if (!subCommand.trim().equals("")) {
+					commands.add(subCommand.trim());
+				}
+			}
+			Pipeline(commands);
+		}
+		
+	}
+	public class STATS_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			// Let whatever is in flight in a batch finish, so it's counted
+			flushPipeline();
+			Shell.FlushLog();
+			for (String line : FTPMetrics.Report()) {
+				System.out.println(line);
+			}
+		}
+		
+	}
+	public class LATENCY_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			flushPipeline();
+			List<String> lines = FTPMetrics.LatencyReport();
+			Shell.FlushLog();
+			if (lines.isEmpty()) {
+				System.out.println("No commands sent yet");
+			}
+			for (String line : lines) {
+				System.out.println(line);
+			}
+		}
+		
+	}
+	public class LIMIT_CMDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			if (command.length == 0) {
+				Shell.FlushLog();
+				System.out.print(FTPThrottle.Describe());
+				return;
+			}
+			
+			String host = null;
+			if (command.length == 3 && command[0].equals("-h")) {
+				host = command[1];
+			} else if (command.length != 1) {
+				badCommand();
+			}
+			long rate = FTPRateLimiter.ParseRate(command[command.length - 1]);
+			if (rate < 0) {
+				badCommand();
+			}
+			
+			if (host == null) {
+				FTPThrottle.SetGlobalRate(rate);
+			} else {
+				FTPThrottle.SetHostRate(host, rate);
+			}
+			String which = (host == null) ? "all transfers" : "transfers to " + host;
+			logger.log(Level.INFO, (rate > 0) ? "Limited " + which + " to " + FTPRateLimiter.FormatRate(rate) : "Lifted the limit on " + which);
+		}
+		
 	}
 	public class HELP_CMDhandler implements FTPClientCommandHandler {
 
 		@Override
 		public void handle(String[] command) {
 			// TODO Auto-generated method stub
+			Shell.FlushLog();
 			System.out.println(FTPInterfaceCommand.GetHelpString());
-			Reset();
 		}
 		
 	}
@@ -773,7 +1651,8 @@ public class FTPClientManager implements ProtocolManager {
 		@Override
 		public void handle(String[] command) throws Throwable {
 			// TODO Auto-generated method stub
-			System.out.println(FTPConnection.getControlInstance(currentControlHost).GetIPV4Host());
+			Shell.FlushLog();
+			System.out.println(currentSession().GetControlConnection().GetIPV4Host());
 			
 		}
 		
@@ -795,6 +1674,69 @@ public class FTPClientManager implements ProtocolManager {
 			
 		}
 		
+	}
+	public class SIZEhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.SIZE.name() + " " + command[0]);
+			
+		}
+		
+	}
+	public class RESThandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.REST.name() + " " + command[0]);
+			
+		}
+		
+	}
+	public class TYPEhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.TYPE.name() + " " + command[0]);
+			
+		}
+		
+	}
+	public class MODEhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.MODE.name() + " " + command[0]);
+			
+		}
+		
+	}
+	public class OPTShandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.OPTS.name() + " " + String.join(" ", command));
+			
+		}
+		
+	}
+	public class STORhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.STOR.name() + " " + command[0]);
+			
+		}
+		
+	}
+	public class APPEhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			sendControlMessage(FTPCommand.APPE.name() + " " + command[0]);
+			
+		}
+		
 	}
 	public class PWDhandler implements FTPClientCommandHandler {
 
@@ -820,6 +1762,30 @@ public class FTPClientManager implements ProtocolManager {
 			
 		}
 		
+	}
+	public class MLSDhandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			String commandStr = FTPCommand.MLSD.name();
+			if (command.length > 0) {
+				commandStr += " " + String.join(" ", command);
+			}
+			sendControlMessage(commandStr);
+		}
+		
+	}
+	public class MLSThandler implements FTPClientCommandHandler {
+
+		@Override
+		public void handle(String[] command) throws Throwable {
+			String commandStr = FTPCommand.MLST.name();
+			if (command.length > 0) {
+				commandStr += " " + String.join(" ", command);
+			}
+			sendControlMessage(commandStr);
+		}
+		
 	}
 	public class HELPhandler implements FTPClientCommandHandler {
 
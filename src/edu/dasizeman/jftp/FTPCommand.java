@@ -14,5 +14,14 @@ public enum FTPCommand {
 	PWD,
 	LIST, 
 	HELP,
-	NOOP
+	NOOP,
+	SIZE,
+	REST,
+	TYPE,
+	STOR,
+	APPE,
+	MLSD,
+	MLST,
+	MODE,
+	OPTS
 }
@@ -1,22 +1,54 @@
 package edu.dasizeman.jftp;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class FTPConnection extends Connection implements Runnable {
-	private static FTPConnection controlInstance, dataInstance;
 	public static final String CRLF = "\r\n";
 	public static final int DEFAULT_PORT = 21;
+	
+	// How much we ask FileChannel.transferFrom to move per call on the NIO path
+	private static final long TRANSFER_CHUNK_SIZE = 8*1024*1024;
+	
+	// Buffer size for the (de)compressing streams of MODE Z
+	private static final int ZLIB_BUFFER_SIZE = 64*1024;
 	private static Logger logger;
+	private static boolean nioEnabled = true;
+	private static boolean reactorEnabled = false;
+	
+	// Handed to synchronous readers in place of a reply when the connection goes away
+	private static final String CONNECTION_CLOSED = new String("");
 	
 	static {
 		logger = Logger.getGlobal();
@@ -29,88 +61,74 @@ public class FTPConnection extends Connection implements Runnable {
 	
 	private ProtocolManager manager;
 	private UncaughtExceptionHandler handler;
-	private String nextCommand;
 	private BufferedWriter writer;
 	private BufferedReader reader;
+	
+	// Control connections read replies as bytes, data connections read text through the reader
+	private BufferedInputStream input;
+	private final FTPReplyParser replyParser = new FTPReplyParser();
 	private Mode mode;
 	private String MODULE_NAME;
 	private String filePath;
+	private boolean appendToFile;
+	private boolean sending;
 	
+	// Times the transfer this data connection is doing, for FTPMetrics
+	private FTPTransferMetrics.Timer transfer;
 	
+	// Whether the server took the command this data connection is for (its 1xx), or false if
+	// we gave up on it and closed the connection first.  Downloads don't touch the local file
+	// until they know.
+	private final CompletableFuture<Boolean> accepted = new CompletableFuture<Boolean>();
+	private volatile boolean closing;
 	
-	public static FTPConnection getControlInstance(String host) throws Exception {
-		// If no port is given, append the default port
-		if (!host.contains(":")) {
-			host = host + ":" + Integer.toString(DEFAULT_PORT);
-		}
-		
-		if (controlInstance == null) {
-			controlInstance = new FTPConnection(host);
-		}
-		
-		// If the host address or port have changed, we must re-connect
-		String previousHost = controlInstance.host;
-		int previousPort = controlInstance.port;
-		
-		// Set's the instance's host and port
-		controlInstance.parseHostString(host);
-		
-		if (!controlInstance.host.equals(previousHost) 
-				|| controlInstance.port != previousPort
-				|| !controlInstance.socket.isConnected()) {
-			controlInstance.close();
-			controlInstance = new FTPConnection(host);
-		}
-		
-
-		return controlInstance;
-	}
+	// MODE Z: the data is one zlib stream, inflated as it's read (through inflatedInput, and
+	// the reader for text) or deflated at compressionLevel as it's sent
+	private boolean compressed;
+	private int compressionLevel;
+	private Inflater inflater;
+	private InputStream inflatedInput;
 	
-	public static FTPConnection getDataInstance(String host, FTPCommand type) throws Exception {
-		if (controlInstance == null) {
-			throw new Exception("Cannot create a data connection without a control connection.");
-		}
-		if(dataInstance == null) {
-			dataInstance = new FTPConnection(host, type);
-		}
-			// If this is for a passive connection it's just like a control connection, we care about updating if the host
-			// changes
-			// If the host address or port have changed, we must re-connect
-			String previousHost = dataInstance.host;
-			int previousPort = dataInstance.port;
-			
-			// Set's the instance's host and port
-			dataInstance.parseHostString(host);
-			
-			if (!dataInstance.host.equals(previousHost) 
-					|| dataInstance.port != previousPort
-					|| !dataInstance.socket.isConnected()) {
-				dataInstance.close();
-				dataInstance = new FTPConnection(host, type);
-			}
-		
-		
-		
-		return dataInstance;
-	}
+	// TYPE A: files have their line endings converted on the way
+	private boolean ascii;
 	
-	public static void ResetDataConnection() {
-		// We don't need this connection anymore, let the GC take care of it,
-		// and we'll make a new one later
-		dataInstance = null;
-	}
+	// Bandwidth limits for this transfer, or null if it can go as fast as it likes
+	private volatile FTPThrottle throttle;
+	
+	// Only used when the connection is driven by the FTPReactor
+	private FTPReactor reactor;
+	private ControlHandler controlHandler;
+	private final BlockingQueue<String> synchronousReplies = new LinkedBlockingQueue<String>();
+	private final AtomicInteger synchronousReads = new AtomicInteger();
 	
-	public static boolean HasControlInstance() {
-		return !(controlInstance == null);
+	// Replies that the reader thread still has to read, in thread-per-connection mode
+	private final AtomicInteger expectedReplies = new AtomicInteger();
+	
+	
+	
+	// Turns the NIO (SocketChannel -> FileChannel) data path on or off.  When it's off,
+	// or the channel can't be opened, downloads go through the old stream copy.
+	public static void SetNIOEnabled(boolean enabled) {
+		nioEnabled = enabled;
+	}
+
+	// Sends connections created from now on through the shared FTPReactor selector thread,
+	// instead of starting a thread for every command and transfer
+	public static void SetReactorEnabled(boolean enabled) {
+		reactorEnabled = enabled;
 	}
 
 	// Used for control connections
 	public FTPConnection(String host) throws Exception {
 		super(host);
-		Connect();
+		if (reactorEnabled) {
+			ConnectChannel();
+		} else {
+			Connect();
+		}
 		this.mode = Mode.CONTROL;
 		this.writer = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
-		this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+		this.input = new BufferedInputStream(this.socket.getInputStream());
 		this.MODULE_NAME = "ControlConnection";
 		logger.log(Level.FINE, MODULE_NAME + ":connecting to " + host);
 		
@@ -126,7 +144,9 @@ public class FTPConnection extends Connection implements Runnable {
 			if (!parseHostString(host)) {
 				throw new Exception("Could not parse connection host: " + host);
 			}
-			Connect();
+			long start = System.nanoTime();
+			connectData();
+			FTPMetrics.DataConnections().Record(System.nanoTime() - start);
 			logger.log(Level.FINE, MODULE_NAME + ":connecting to " + host);
 			
 		} else if (type == FTPCommand.PORT || type == FTPCommand.EPRT) {
@@ -134,12 +154,53 @@ public class FTPConnection extends Connection implements Runnable {
 			ServerSocket serverSocket = new ServerSocket(dataPort);
 			this.socket = serverSocket.accept();
 			serverSocket.close();
+			this.socketInputStream = this.socket.getInputStream();
+			this.socketOutputStream = this.socket.getOutputStream();
 		} else {
 			throw new Exception("FTPConnection must be passed one of PORT, EPRT, PASV, or EPSV");
 		}
 
-		this.writer = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
-		this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+		// Everything that goes through the streams is paced, the raw copies pace themselves
+		this.socketInputStream = new PacedInputStream(this.socketInputStream);
+		this.socketOutputStream = new PacedOutputStream(this.socketOutputStream);
+		this.writer = new BufferedWriter(new OutputStreamWriter(this.socketOutputStream));
+		this.reader = new BufferedReader(new InputStreamReader(this.socketInputStream));
+	}
+	
+	// Opens the passive data socket, preferring a channel-backed one
+	private void connectData() throws Exception {
+		if (nioEnabled || reactorEnabled) {
+			try {
+				ConnectChannel();
+				return;
+			} catch (IOException e) {
+				logger.log(Level.FINE, MODULE_NAME + ": could not open data channel, falling back to a stream socket: " + e.getMessage());
+			}
+		}
+		Connect();
+	}
+	
+	// Turns MODE Z on for this data connection.  Has to be called before the transfer starts.
+	public void SetCompression(boolean enabled, int level) {
+		this.compressed = enabled;
+		this.compressionLevel = level;
+		if (enabled && this.mode == Mode.DATA) {
+			this.inflater = new Inflater();
+			this.inflatedInput = new InflaterInputStream(this.socketInputStream, this.inflater, ZLIB_BUFFER_SIZE);
+			this.reader = new BufferedReader(new InputStreamReader(this.inflatedInput));
+		}
+	}
+	
+	// Turns line ending conversion on for files sent or received on this data connection, for
+	// when the session is in TYPE A.  Listings are read a line at a time either way.
+	public void SetAscii(boolean enabled) {
+		this.ascii = enabled;
+	}
+	
+	// Holds this data connection to the throttle's limits.  Has to be called before the
+	// transfer starts, since throttled transfers don't go through the reactor.
+	public void SetThrottle(FTPThrottle throttle) {
+		this.throttle = throttle;
 	}
 	
 	public String GetIPV4Host() {
@@ -155,25 +216,182 @@ public class FTPConnection extends Connection implements Runnable {
 		if (this.manager == null || this.handler == null) {
 			throw new Exception(MODULE_NAME + " Connect(): handler or protocol manager not set");
 		}
-		this.nextCommand = command;
+		if (reactorEnabled) {
+			// The reactor is always reading, so a blank command (waiting for a reply) needs nothing
+			registerControl();
+			if (!command.equals("")) {
+				logSending(command);
+				queueCommand(command);
+			}
+			return;
+		}
+		
+		// The command goes out right away, so several can be in flight (pipelining).  A blank
+		// command means we're waiting for a reply without sending anything, like the greeting.
+		if (!command.equals("")) {
+			synchronized (this.writer) {
+				logSending(command);
+				this.writer.write(command + CRLF);
+				this.writer.flush();
+			}
+		}
 		
-		Thread t = new Thread(this);
-		t.setUncaughtExceptionHandler(this.handler);
-		t.start();
+		// Replies are read in order by one reader thread, which keeps going for as long as there
+		// are replies to come.  Only start one if the last one has finished.
+		if (this.expectedReplies.getAndIncrement() == 0) {
+			FTPThreads.Start(this, this.handler);
+		}
 	}
 	
 	public void ReadData(String filePath) throws Exception {
+		ReadData(filePath, false);
+	}
+	
+	// With append set, the data is added to the end of the file instead of replacing it (for resuming)
+	public void ReadData(String filePath, boolean append) throws Exception {
 		if (this.manager == null || this.handler == null) {
 			throw new Exception(MODULE_NAME + " Connect(): handler or protocol manager not set");
 		}
 		this.filePath = filePath;
+		this.appendToFile = append;
+		this.sending = false;
+		this.transfer = FTPMetrics.Transfers(filePath.equals("") ? FTPCommand.LIST : FTPCommand.RETR).Start();
 		
-		Thread t = new Thread(this);
-		t.setUncaughtExceptionHandler(this.handler);
-		t.start();
+		// Only listings go through the reactor.  Files are written on a thread, so a slow disk
+		// doesn't stall every other connection on the selector (and they get transferFrom()
+		// there), and so is anything that changes the data or has to be paced.
+		if (filePath.equals("") && !changesData() && this.throttle == null && usingReactorForData()) {
+			this.reactor.Register(getChannel(), new TextHandler());
+			return;
+		}
+		
+		FTPThreads.Start(this, this.handler);
 		
 	}
 	
+	// Synchronous version of SendCommand(), for callers that drive the connection themselves
+	// instead of going through a ProtocolManager
+	public String Execute(String command) throws IOException {
+		logSending(command);
+		if (reactorEnabled) {
+			// Claim the reply before it can arrive, so the reactor hands it to us
+			this.synchronousReads.incrementAndGet();
+			try {
+				registerControl();
+				queueCommand(command);
+				return ReadResponse();
+			} finally {
+				this.synchronousReads.decrementAndGet();
+			}
+		}
+		this.writer.write(command + CRLF);
+		this.writer.flush();
+		return ReadResponse();
+	}
+	
+	// Blocks until the next (possibly multiline) response arrives
+	public String ReadResponse() {
+		String response;
+		if (reactorEnabled) {
+			response = awaitReactorReply();
+		} else {
+			response = ReadFTPResponse();
+			logReceived(response);
+		}
+		return response;
+	}
+	
+	// Synchronous data read into a region of a file.  Stops after length bytes, or when the
+	// server closes the connection if length is negative.  Returns the number of bytes written.
+	public long ReceiveToFile(FileChannel file, long position, long length) throws IOException {
+		FTPTransferMetrics.Timer timer = FTPMetrics.Transfers(FTPCommand.RETR).Start();
+		long remaining = (length < 0) ? Long.MAX_VALUE : length;
+		long total = 0;
+		SocketChannel channel = this.compressed ? null : getChannel();
+		InputStream in = this.compressed ? this.inflatedInput : this.socketInputStream;
+		try {
+			if (channel != null) {
+				// A one byte transfer first, so we can tell when the data started coming
+				long count = (remaining > 0) ? file.transferFrom(channel, position, 1) : 0;
+				if (count > 0) {
+					timer.FirstByte();
+					total += count;
+					remaining -= count;
+				}
+				long chunk = chunkSize();
+				while (count > 0 && remaining > 0 
+						&& (count = file.transferFrom(channel, position + total, Math.min(remaining, chunk))) > 0) {
+					pace(count);
+					total += count;
+					remaining -= count;
+				}
+			} else {
+				int count;
+				byte[] buffer = new byte[16*1024];
+				while (remaining > 0 
+						&& (count = in.read(buffer, 0, (int)Math.min(remaining, buffer.length))) > 0) {
+					timer.FirstByte();
+					ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+					while (chunk.hasRemaining()) {
+						file.write(chunk, position + total + chunk.position());
+					}
+					total += count;
+					remaining -= count;
+				}
+			}
+		} catch (IOException e) {
+			timer.Failed();
+			throw e;
+		}
+		timer.Finished(total);
+		return total;
+	}
+	
+	// Streams a local file to the other end and closes the connection when done, for STOR/APPE.
+	// Nothing is sent until Accepted(), and nothing at all if the connection is closed first.
+	public void SendData(String filePath) throws Exception {
+		if (this.manager == null || this.handler == null) {
+			throw new Exception(MODULE_NAME + " Connect(): handler or protocol manager not set");
+		}
+		this.filePath = filePath;
+		this.sending = true;
+		this.transfer = FTPMetrics.Transfers(FTPCommand.STOR).Start();
+		
+		if (!changesData() && this.throttle == null && usingReactorForData()) {
+			this.accepted.thenAccept(accepted -> startReactorUpload(accepted));
+			return;
+		}
+		
+		FTPThreads.Start(this, this.handler);
+	}
+	
+	// Hands the upload to the reactor once the server has taken the STOR/APPE.  Runs on
+	// whichever thread completes the accepted future.
+	private void startReactorUpload(boolean accepted) {
+		if (!accepted) {
+			// Whoever closed us has already failed the transfer
+			this.transfer.Failed();
+			return;
+		}
+		try {
+			logger.log(Level.FINE, MODULE_NAME + ": sending " + this.filePath);
+			this.reactor.Register(getChannel(), new UploadHandler(this.filePath));
+			this.reactor.Write(getChannel());
+		} catch (IOException e) {
+			this.transfer.Failed();
+			dataFailed(e);
+		}
+	}
+	
+	// Every command and reply is logged at FINE, so don't build the message unless it's wanted
+	private void logSending(final String command) {
+		logger.log(Level.FINE, () -> MODULE_NAME + ":sending \"" + command + "\"");
+	}
+	
+	private void logReceived(final String response) {
+		logger.log(Level.FINE, () -> MODULE_NAME + ": received \"" + response + "\"");
+	}
+	
 	public void SetProtocolManager(ProtocolManager manager) {
 		this.manager = manager;
 	}
@@ -182,82 +400,550 @@ public class FTPConnection extends Connection implements Runnable {
 		this.handler = handler;
 	}
 	
-	// Reads text from a data connection, like for LS
-	private String readASCIIData() {
-		//TODO
-		StringBuffer data = new StringBuffer();
+	// The server answered the transfer command with a 1xx, so the data is really coming
+	public void Accepted() {
+		this.accepted.complete(true);
+	}
+	
+	// Closing a data connection before it's been accepted means the transfer is off.  Whatever
+	// the transfer thread runs into after that is because of the close, not worth reporting.
+	@Override
+	public void close() throws Exception {
+		this.closing = true;
+		this.accepted.complete(false);
+		super.close();
+	}
+	
+	private boolean waitUntilAccepted() throws InterruptedIOException {
+		try {
+			return this.accepted.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the server to start the transfer");
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+	
+	// Whether the bytes in the file and on the wire differ, which rules out the raw copies.
+	// Listings are split into lines whatever the type.
+	private boolean changesData() {
+		return this.compressed || (this.ascii && !this.filePath.equals(""));
+	}
+	
+	/* Reactor mode */
+	
+	private synchronized void registerControl() throws IOException {
+		if (this.reactor != null) {
+			return;
+		}
+		this.reactor = FTPReactor.getInstance();
+		this.controlHandler = new ControlHandler();
+		this.reactor.Register(getChannel(), this.controlHandler);
+	}
+	
+	private boolean usingReactorForData() throws IOException {
+		if (!reactorEnabled || getChannel() == null) {
+			return false;
+		}
+		this.reactor = FTPReactor.getInstance();
+		return true;
+	}
+	
+	private void queueCommand(String command) throws IOException {
+		if (!getChannel().isOpen()) {
+			throw new IOException(MODULE_NAME + ":connection is closed");
+		}
+		this.controlHandler.outgoing.add(ByteBuffer.wrap((command + CRLF).getBytes()));
+		this.reactor.Write(getChannel());
+	}
+	
+	private String awaitReactorReply() {
+		this.synchronousReads.incrementAndGet();
+		try {
+			registerControl();
+			String response = this.synchronousReplies.take();
+			if (response == CONNECTION_CLOSED) {
+				throw new RuntimeException(MODULE_NAME + ":failed to read response");
+			}
+			return response;
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException(MODULE_NAME + ":failed to read response");
+		} finally {
+			this.synchronousReads.decrementAndGet();
+		}
+	}
+	
+	// Runs on the reactor thread for every complete reply.  Synchronous readers get first dibs,
+	// everything else goes to the protocol manager like it would from runControl().
+	private void replyReceived(String response) {
+		logReceived(response);
+		if (this.manager == null || this.synchronousReads.get() > 0) {
+			this.synchronousReplies.add(response);
+			return;
+		}
+		try {
+			this.manager.ControlDataReceived(response);
+		} catch (Throwable e) {
+			this.handler.uncaughtException(Thread.currentThread(), e);
+		}
+	}
+	
+	// Reports a failed transfer to the protocol manager, like an exception out of runData()
+	private void dataFailed(Throwable e) {
+		if (this.handler != null) {
+			this.handler.uncaughtException(Thread.currentThread(), new RuntimeException(e.getMessage()));
+		}
+	}
+	
+	// Splits the control stream into (possibly multiline) replies, the same way ReadFTPResponse() does
+	private class ControlHandler implements FTPReactor.Handler {
+		private final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		@Override
+		public void Read(ByteBuffer data) throws IOException {
+			String reply;
+			while ((reply = replyParser.Feed(data)) != null) {
+				replyReceived(reply);
+			}
+		}
+
+		@Override
+		public boolean Writable(SocketChannel channel) throws IOException {
+			ByteBuffer next;
+			while ((next = outgoing.peek()) != null) {
+				channel.write(next);
+				if (next.hasRemaining()) {
+					return false;
+				}
+				outgoing.poll();
+			}
+			return true;
+		}
+
+		@Override
+		public void Closed() {
+			synchronousReplies.add(CONNECTION_CLOSED);
+		}
+
+		@Override
+		public void Failed(Throwable e) {
+			logger.log(Level.FINE, MODULE_NAME + ": " + e.getClass().getName() + e.getMessage());
+			synchronousReplies.add(CONNECTION_CLOSED);
+			if (manager != null && synchronousReads.get() == 0) {
+				handler.uncaughtException(Thread.currentThread(), new RuntimeException(MODULE_NAME + ":" + e.getMessage()));
+			}
+		}
+	}
+	
+	// Hands text from a data connection (like for LS) to the protocol manager a line at a time
+	private class TextHandler implements FTPReactor.Handler {
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private long total;
+
+		@Override
+		public void Read(ByteBuffer data) {
+			transfer.FirstByte();
+			total += data.remaining();
+			while (data.hasRemaining()) {
+				byte b = data.get();
+				if (b == '\n') {
+					lineReceived();
+				} else {
+					line.write(b);
+				}
+			}
+		}
 		
+		private void lineReceived() {
+			String str = line.toString();
+			line.reset();
+			if (str.endsWith("\r")) {
+				str = str.substring(0, str.length() - 1);
+			}
+			manager.TextLineReceived(str);
+		}
+
+		@Override
+		public boolean Writable(SocketChannel channel) {
+			return true;
+		}
+
+		@Override
+		public void Closed() {
+			if (line.size() > 0) {
+				lineReceived();
+			}
+			transfer.Finished(total);
+			manager.DataTransferFinished();
+		}
+
+		@Override
+		public void Failed(Throwable e) {
+			transfer.Failed();
+			dataFailed(e);
+		}
+	}
+	
+	// Feeds a file to the socket with transferTo() as fast as the socket takes it, then closes it
+	private class UploadHandler implements FTPReactor.Handler {
+		private final String path;
+		private final FileInputStream fin;
+		private final FileChannel file;
+		private final long size, start;
+		private long position;
+
+		UploadHandler(String path) throws IOException {
+			this.path = path;
+			this.fin = new FileInputStream(path);
+			this.file = fin.getChannel();
+			this.size = file.size();
+			this.start = System.nanoTime();
+		}
+
+		@Override
+		public void Read(ByteBuffer data) {
+			// Nothing is supposed to come back on an upload
+		}
+
+		@Override
+		public boolean Writable(SocketChannel channel) throws IOException {
+			while (position < size) {
+				long count = file.transferTo(position, Math.min(size - position, TRANSFER_CHUNK_SIZE), channel);
+				if (count == 0) {
+					// Socket buffer is full, wait until it drains
+					return false;
+				}
+				position += count;
+			}
+			
+			// End of file is signalled by closing the connection
+			fin.close();
+			channel.close();
+			logThroughput("reactor", path, position, System.nanoTime() - start);
+			transfer.Finished(position);
+			manager.DataTransferFinished();
+			return true;
+		}
+
+		@Override
+		public void Closed() throws IOException {
+			fin.close();
+			if (position < size) {
+				throw new IOException(MODULE_NAME + ": connection closed after " + position + " of " + size + " bytes");
+			}
+		}
+
+		@Override
+		public void Failed(Throwable e) {
+			try {
+				fin.close();
+			} catch (IOException closeException) {
+				logger.log(Level.FINE, closeException.getClass().getName() + closeException.getMessage());
+			}
+			transfer.Failed();
+			dataFailed(e);
+		}
+	}
+	
+	// Reads text from a data connection, like for LS, and passes each line on as soon as it
+	// arrives instead of holding on to the whole listing
+	private void readASCIIData() {
 		// Read until the connection is closed on us
 		String line;
+		long total = 0;
 		while(true) {
 			try {
 				line = this.reader.readLine();
 				if (line == null)
 					break;
-				data.append(line + CRLF);
+				this.transfer.FirstByte();
+				
+				// Listings are ASCII with CRLF line endings, so this is the byte count
+				total += line.length() + CRLF.length();
+				this.manager.TextLineReceived(line);
 			} catch (IOException e) {
 				break;
 			}
 		}
+		this.transfer.Finished(total);
+	}
+	
+	// Synchronous line-at-a-time read of a text data connection, for callers that drive the
+	// connection themselves.  Returns null once the server closes the connection.
+	public String ReadLine() throws IOException {
+		return this.reader.readLine();
+	}
+	
+	// Keeps reading the socket and dumping to a file until the connection is closed.  Returns
+	// false, without having touched the file, if the server refused the RETR.
+	private boolean dumpToFile(String path, boolean append) throws Exception {
+		// A refused RETR shouldn't truncate (or create) the file it was going to replace
+		if (!waitUntilAccepted()) {
+			return false;
+		}
+		FileOutputStream fout = new FileOutputStream(path, append);
 		
-		return data.toString();
+		long start = System.nanoTime();
+		long total = 0;
+		String method;
+		try {
+			SocketChannel channel = getChannel();
+			FTPAsciiConverter converter = this.ascii ? FTPAsciiConverter.FromNetwork() : null;
+			if (this.compressed) {
+				total = copyToFile(this.inflatedInput, fout, converter);
+				if (!this.inflater.finished()) {
+					// Unlike a plain stream, we can tell when one of these was cut short
+					throw new IOException("Compressed data ended after " + total + " bytes");
+				}
+				method = (this.ascii ? "ASCII, " : "") + "zlib, " + this.inflater.getBytesRead() + " bytes compressed";
+			} else if (this.ascii) {
+				method = "ASCII";
+				total = copyToFile(this.socketInputStream, fout, converter);
+			} else if (channel != null) {
+				// Let the kernel move the bytes straight from the socket into the file
+				method = "NIO";
+				total = transferToFile(channel, fout.getChannel());
+			} else {
+				method = "stream";
+				total = copyToFile(this.socketInputStream, fout, null);
+			}
+		} finally {
+			fout.close();
+		}
 		
+		logThroughput(method, path, total, System.nanoTime() - start);
+		this.transfer.Finished(total);
+		return true;
 	}
 	
-	// Keeps reading the socket and dumping to a file until the connection is closed
-	private void dumpToFile(String path) throws Exception {
-		//Open a file output stream
-		FileOutputStream fout = new FileOutputStream(path);
-		
+	// NIO path.  transferFrom() on a blocking channel only returns 0 at end of stream.
+	// Writing starts at the file's current position, which is its end when appending.
+	private long transferToFile(SocketChannel channel, FileChannel file) throws IOException {
+		long start = file.position();
+		long total = 0;
+		try {
+			// A one byte transfer first, so we can tell when the data started coming
+			long count = file.transferFrom(channel, start, 1);
+			if (count > 0) {
+				this.transfer.FirstByte();
+				total += count;
+			}
+			long chunk = chunkSize();
+			while (count > 0 && (count = file.transferFrom(channel, start + total, chunk)) > 0) {
+				pace(count);
+				total += count;
+			}
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IOException(MODULE_NAME + ": transfer failed after " + total + " bytes: " + e.getMessage(), e);
+		}
+		return total;
+	}
+	
+	// Stream fallback, for sockets that don't have a channel, and for data that has to be
+	// changed on the way (inflated, or converted from TYPE A when there's a converter).
+	// Returns the number of bytes written to the file.
+	private long copyToFile(InputStream in, FileOutputStream fout, FTPAsciiConverter converter) throws IOException {
+		long total = 0;
+		byte[] buffer = new byte[16*1024];
+		byte[] converted = (converter != null) ? new byte[FTPAsciiConverter.MaxOutput(buffer.length)] : null;
 		try {
 			// Read the bytes to the file until it closes
 			int count = 0;
-			byte[] buffer = new byte[16*1024];
-			while ((count = this.socket.getInputStream().read(buffer)) > 0) {
-				fout.write(buffer, 0, count);
+			while ((count = in.read(buffer)) > 0) {
+				this.transfer.FirstByte();
+				if (converter != null) {
+					count = converter.Convert(buffer, count, converted);
+					fout.write(converted, 0, count);
+				} else {
+					fout.write(buffer, 0, count);
+				}
+				total += count;
 			}
+		} catch (InterruptedIOException e) {
+			throw e;
 		} catch (IOException e) {
-			logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+			throw new IOException(MODULE_NAME + ": transfer failed after " + total + " bytes: " + e.getMessage(), e);
+		}
+		if (converter != null) {
+			int count = converter.Finish(converted);
+			fout.write(converted, 0, count);
+			total += count;
+		}
+		return total;
+	}
+	
+	// Sends the whole file and closes the socket, since end of file is signalled by the close.
+	// Returns false, without having sent anything, if the server refused the STOR/APPE.
+	private boolean uploadFile(String path) throws Exception {
+		if (!waitUntilAccepted()) {
+			return false;
 		}
+		FileInputStream fin = new FileInputStream(path);
 		
-		fout.close();
+		long start = System.nanoTime();
+		long total = 0;
+		String method;
+		try {
+			SocketChannel channel = getChannel();
+			WritableByteChannel target;
+			FTPAsciiConverter converter = this.ascii ? FTPAsciiConverter.ToNetwork() : null;
+			if (this.compressed) {
+				Deflater deflater = new Deflater(this.compressionLevel);
+				try {
+					DeflaterOutputStream out = new DeflaterOutputStream(this.socketOutputStream, deflater, ZLIB_BUFFER_SIZE);
+					total = copyFromFile(fin, out, converter);
+					
+					// Finishing the zlib stream is what tells the server the data is complete
+					// (along with the close)
+					out.finish();
+					out.flush();
+					method = (this.ascii ? "ASCII, " : "") + "zlib, " + deflater.getBytesWritten() + " bytes compressed";
+				} finally {
+					deflater.end();
+				}
+			} else if (this.ascii) {
+				method = "ASCII";
+				total = copyFromFile(fin, this.socketOutputStream, converter);
+				this.socketOutputStream.flush();
+			} else {
+				if (channel != null) {
+					// Straight from the page cache to the socket
+					method = "NIO";
+					target = channel;
+				} else {
+					// The socket's own stream, since transferFromFile() does the pacing
+					method = "stream";
+					target = Channels.newChannel(this.socket.getOutputStream());
+				}
+				total = transferFromFile(fin.getChannel(), target);
+			}
+		} finally {
+			fin.close();
+			
+			// Not our close(), which is for calling the transfer off and would hide a failure
+			super.close();
+		}
+		
+		logThroughput(method, path, total, System.nanoTime() - start);
+		this.transfer.Finished(total);
+		return true;
 	}
 	
+	private long transferFromFile(FileChannel file, WritableByteChannel target) throws IOException {
+		long size = file.size();
+		long position = 0;
+		long chunk = chunkSize();
+		while (position < size) {
+			long count = file.transferTo(position, Math.min(size - position, chunk), target);
+			pace(count);
+			position += count;
+		}
+		return position;
+	}
 	
+	// Upload through a stream, for data that has to be changed on the way (deflated, or
+	// converted to TYPE A when there's a converter).  Returns the size of the local file.
+	private long copyFromFile(FileInputStream fin, OutputStream out, FTPAsciiConverter converter) throws IOException {
+		long total = 0;
+		int count;
+		byte[] buffer = new byte[ZLIB_BUFFER_SIZE];
+		byte[] converted = (converter != null) ? new byte[FTPAsciiConverter.MaxOutput(buffer.length)] : null;
+		while ((count = fin.read(buffer)) > 0) {
+			total += count;
+			if (converter != null) {
+				out.write(converted, 0, converter.Convert(buffer, count, converted));
+			} else {
+				out.write(buffer, 0, count);
+			}
+		}
+		if (converter != null) {
+			out.write(converted, 0, converter.Finish(converted));
+		}
+		return total;
+	}
 	
-	// Handles the possibility of multiline responses
-	private String ReadFTPResponse() {
-		StringBuffer response = new StringBuffer();
+	// How much the raw copies move per call: everything we can, unless they have to be paced
+	private long chunkSize() {
+		FTPThrottle current = this.throttle;
+		return (current == null) ? TRANSFER_CHUNK_SIZE : Math.min(TRANSFER_CHUNK_SIZE, current.ChunkSize());
+	}
+	
+	// Accounts for bytes moved on the wire, and waits if we're over the limits
+	private void pace(long bytes) throws InterruptedIOException {
+		FTPThrottle current = this.throttle;
+		if (current != null) {
+			current.Pace(bytes);
+		}
+	}
+	
+	// The socket streams of a data connection, so the stream paths (and the zlib streams on
+	// top of them) are held to the throttle by wire bytes
+	private class PacedInputStream extends FilterInputStream {
+		PacedInputStream(InputStream in) {
+			super(in);
+		}
 		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				pace(1);
+			}
+			return b;
+		}
 		
-		try {
-			
-			// Read the first line
-			response.append(this.reader.readLine());
-			
-			// Look for the code followed by a '-', this means the response is multiline
-			String firstLine = response.toString();
-			
-			if (!Pattern.matches("^\\d+-.*", firstLine)) {
-				return firstLine;
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = super.read(b, off, len);
+			if (count > 0) {
+				pace(count);
 			}
-			
-			response.append(CRLF);
-			
-			// Read until we find the next line beginning with a number
-			String thisLine;
-			do {
-				thisLine = this.reader.readLine();
-				response.append(thisLine + CRLF);
-			}while(!Pattern.matches("^\\d+.*", thisLine));
-			
-			
-		} catch (IOException e) {
-			throw new RuntimeException(MODULE_NAME + ":failed to read response");
-		} 
+			return count;
+		}
+	}
+	
+	private class PacedOutputStream extends FilterOutputStream {
+		PacedOutputStream(OutputStream out) {
+			super(out);
+		}
 		
-		return response.toString();
+		@Override
+		public void write(int b) throws IOException {
+			pace(1);
+			out.write(b);
+		}
 		
+		// FilterOutputStream would write these a byte at a time
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			pace(len);
+			out.write(b, off, len);
+		}
+	}
+	
+	private void logThroughput(String method, String path, long bytes, long nanos) {
+		long bytesPerSecond = (nanos > 0) ? (long)(bytes * 1e9 / nanos) : 0;
+		logger.log(Level.INFO, MODULE_NAME + ": " + bytes + " bytes " + (this.sending ? "from " : "to ") + path + " in " 
+				+ (nanos / 1000000) + " ms (" + bytesPerSecond + " bytes/sec, " + method + ")");
+	}
+	
+	
+	
+	// Handles the possibility of multiline responses
+	private String ReadFTPResponse() {
+		try {
+			return this.replyParser.Read(this.input);
+		} catch (IOException e) {
+			// Whatever comes next can't be lined up with a command any more
+			try {
+				this.socket.close();
+			} catch (IOException closeException) {
+				logger.log(Level.FINE, closeException.getClass().getName() + closeException.getMessage());
+			}
+			throw new RuntimeException(MODULE_NAME + ":failed to read response: " + e.getMessage());
+		}
 	}
 	
 	@Override
@@ -274,48 +960,61 @@ public class FTPConnection extends Connection implements Runnable {
 	}
 	
 	private void runControl() {
-		String response = "";
-		try {
-			// Special case, if our next command is blank, it means we're waiting for a greeting
-			// This will block
-			if (this.nextCommand.equals("")) {
-				response = ReadFTPResponse();
-			} else if (this.socket.getInputStream().available() > 0) {
-				
-				// See if there is a message already waiting on the socket.  This can happen 
-				// if the server sends us a timeout notification, etc.  We don't want to block 
-				// if this isn't the case, so we check if there are available bytes on the socket
+		do {
+			String response;
+			try {
+				// This will block
 				response = ReadFTPResponse();
+			} catch (RuntimeException e) {
+				// Nothing more is coming on this connection
+				this.expectedReplies.set(0);
+				throw e;
 			}
 			
-			
-			// If there wasn't a pending response, we can send our command and receive the its response
-			if (response.equals("")) {
-				// Send the command
-					logger.log(Level.FINE, MODULE_NAME + ":sending \"" + this.nextCommand + "\"");
-					this.writer.write(this.nextCommand + CRLF);
-					this.writer.flush();
-				response = ReadFTPResponse();
+			logReceived(response);
+			try {
+				this.manager.ControlDataReceived(response);
+			} catch (RuntimeException e) {
+				// Keep reading the replies that are still to come
+				this.handler.uncaughtException(Thread.currentThread(), e);
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(MODULE_NAME + ":failed to send command");
-		}
-		
-		logger.log(Level.FINE, MODULE_NAME + ": received \"" + response + "\"" );
-		this.manager.ControlDataReceived(response);
+		} while (this.expectedReplies.decrementAndGet() > 0);
 		
 	}
 	
 	private void runData() {
 		try {
-			if (filePath.equals("")) {
-				this.manager.TextDataReceived(readASCIIData());
+			if (sending) {
+				logger.log(Level.FINE, MODULE_NAME + ": sending " + filePath);
+				if (uploadFile(filePath)) {
+					this.manager.DataTransferFinished();
+				} else {
+					this.transfer.Failed();
+				}
+			} else if (filePath.equals("")) {
+				readASCIIData();
+				this.manager.DataTransferFinished();
 			} else {
-				logger.log(Level.FINE, MODULE_NAME + ": writing to " + filePath);
-				dumpToFile(filePath);
+				logger.log(Level.FINE, MODULE_NAME + ": " + (appendToFile ? "appending to " : "writing to ") + filePath);
+				if (dumpToFile(filePath, appendToFile)) {
+					this.manager.DataTransferFinished();
+				} else {
+					// Whoever closed us has already failed the transfer
+					this.transfer.Failed();
+				}
 			}
 		} catch (Exception e) {
+			this.transfer.Failed();
+			if (this.closing) {
+				// We were closed on purpose, and this is just the transfer finding out
+				logger.log(Level.FINE, MODULE_NAME + ": " + e.getMessage());
+				return;
+			}
 			throw new RuntimeException(e.getMessage());
+		} finally {
+			if (this.inflater != null) {
+				this.inflater.end();
+			}
 		}
 	}
 }
@@ -0,0 +1,34 @@
+package edu.dasizeman.jftp;
+
+import java.util.Iterator;
+
+// An MLSD listing, parsed into entries as it is read.  Like FTPListing, it must be read to
+// the end or closed before the session is used again.
+public class FTPEntryListing implements Iterator<FTPListEntry>, AutoCloseable {
+	private final FTPListing lines;
+
+	FTPEntryListing(FTPListing lines) {
+		this.lines = lines;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.lines.hasNext();
+	}
+
+	@Override
+	public FTPListEntry next() {
+		String line = this.lines.next();
+		try {
+			return FTPListEntry.Parse(line);
+		} catch (ProtocolException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		this.lines.close();
+	}
+
+}
@@ -0,0 +1,91 @@
+package edu.dasizeman.jftp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free histogram of non-negative values (we use nanoseconds).  Buckets are log-linear:
+// every power of two is split into 8, so a percentile is never more than 12.5% off, and
+// recording is a couple of atomic adds no matter how many threads are at it.
+public class FTPHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder count, sum;
+	private final AtomicLong max;
+
+	public FTPHistogram() {
+		this.buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	public void Record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		this.buckets.incrementAndGet(index(value));
+		this.count.increment();
+		this.sum.add(value);
+
+		long currentMax;
+		while (value > (currentMax = this.max.get()) && !this.max.compareAndSet(currentMax, value)) {
+			// Someone else raised it first, try again
+		}
+	}
+
+	public long GetCount() {
+		return this.count.sum();
+	}
+
+	public double GetMean() {
+		long n = this.count.sum();
+		return (n == 0) ? 0 : (double)this.sum.sum() / n;
+	}
+
+	public long GetMax() {
+		return this.max.get();
+	}
+
+	// The value that percent% of the recorded values are at or below (to within a bucket)
+	public long GetPercentile(double percent) {
+		long n = this.count.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(percent / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < this.buckets.length(); i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(lowerBound(i + 1) - 1, GetMax());
+			}
+		}
+		return GetMax();
+	}
+
+	// Values below 8 get a bucket each, after that it's 8 buckets per power of two
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		if (exponent >= 63) {
+			return Long.MAX_VALUE;
+		}
+		return (long)(SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+}
@@ -11,10 +11,22 @@ public enum FTPInterfaceCommand {
 	QUIT_CMD("quit", " : exit JFTP.\n"),
 	PASV_CMD("passive", " [-e]: enter PASV mode with selected data port.  Use the -e flag for EPSV\n"),
 	//ACTV_CMD("active", " -p <port> : enter active mode with selected data port.\n"), // Not supporting ACTIVE transfer modes due to lack of time
-	GET_CMD("get", " <filename> : download the selected file.\n"),
+	TYPE_CMD("type", " <binary | ascii> : transfer files as is (the default), or as text with line endings converted.\n"),
+	MODE_CMD("mode", " <s | z> [level] : transfer data as is (s, the default) or deflate compressed (z).  The level (0-9) sets how hard both ends compress.\n"),
+	GET_CMD("get", " [-n <sessions> | -c] [-r <rate>] <filename> : download the selected file.  With -n, download it in segments over that many sessions at once.  With -c, resume a partial download.  With -r, keep it under rate bytes/sec (like 500K or 20M).\n"),
+	MIRROR_CMD("mirror", " [-n <sessions>] <remote directory> <local directory> : download a whole directory tree, over several sessions at once (4 by default).  Files that are already there and unchanged are skipped.\n"),
+	PUT_CMD("put", " [-r <rate>] <filename> [remote filename] : upload the selected file (under rate bytes/sec with -r).\n"),
+	APPEND_CMD("append", " [-r <rate>] <filename> [remote filename] : append the selected file to a file on the server.\n"),
 	PWD_CMD("pwd", " : print the current server directory.\n"),
 	LS_CMD("ls", " [directory] : list the contents of the server directory.\n"),
+	MLSD_CMD("mlsd", " [directory] : list the server directory with machine-readable facts (type, size, modify time).\n"),
+	MLST_CMD("mlst", " [path] : show the machine-readable facts for a single file or directory.\n"),
+	REFRESH_CMD("refresh", " [directory] : forget cached directory listings (all of them, or just the given directory's).\n"),
 	SERVERHELP_CMD("serverhelp", " [command] : show the server's help message (for the given command).\n"),
+	BATCH_CMD("batch", " { <command>; <command>; ... } : run the commands without waiting for each reply in between.\n"),
+	STATS_CMD("stats", " : show transfer counts, throughput and latencies (also available over JMX).\n"),
+	LIMIT_CMD("limit", " [-h <host>] [<rate> | off] : cap the bandwidth of all transfers together (or of those to a host) at rate bytes/sec, like 500K or 20M.  Shows the limits without a rate.\n"),
+	LATENCY_CMD("latency", " : show control connection round trip times and client overhead for each FTP command sent.\n"),
 	HELP_CMD("help", " : show this message.\n");
 	
 	
@@ -0,0 +1,56 @@
+package edu.dasizeman.jftp;
+
+// How long something takes, every time it happens: data connection setup, or a command's
+// round trip.  Recorded in nanoseconds, shown in milliseconds.
+public class FTPLatencyMetrics implements FTPLatencyMetricsMBean {
+	private final FTPHistogram histogram;
+
+	public FTPLatencyMetrics() {
+		this.histogram = new FTPHistogram();
+	}
+
+	public void Record(long nanos) {
+		this.histogram.Record(nanos);
+	}
+
+	public FTPHistogram GetHistogram() {
+		return this.histogram;
+	}
+
+	@Override
+	public long getCount() {
+		return this.histogram.GetCount();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return this.histogram.GetMean() / 1e6;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return this.histogram.GetPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getP90Millis() {
+		return this.histogram.GetPercentile(90) / 1e6;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return this.histogram.GetPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return this.histogram.GetMax() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d, mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+				getCount(), getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(), getMaxMillis());
+	}
+
+}
@@ -0,0 +1,11 @@
+package edu.dasizeman.jftp;
+
+// JMX view of an FTPLatencyMetrics
+public interface FTPLatencyMetricsMBean {
+	public long getCount();
+	public double getMeanMillis();
+	public double getP50Millis();
+	public double getP90Millis();
+	public double getP99Millis();
+	public double getMaxMillis();
+}
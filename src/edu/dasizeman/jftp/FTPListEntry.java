@@ -0,0 +1,174 @@
+package edu.dasizeman.jftp;
+
+import java.time.Instant;
+import java.util.Locale;
+
+// One entry of an MLSD/MLST listing (RFC 3659), parsed from the "fact=value;...; name" form.
+// Sizes and times are kept as plain longs (-1 when the server didn't send them) and the
+// common types are shared constants, so big listings stay cheap to hold and compare.
+public class FTPListEntry {
+	public static final String TYPE_FILE = "file";
+	public static final String TYPE_DIR = "dir";
+	public static final String TYPE_CDIR = "cdir";
+	public static final String TYPE_PDIR = "pdir";
+
+	public final String name;
+	public final String type;
+	public final long size;
+
+	// Milliseconds since the epoch, UTC
+	public final long modified;
+	public final String perm;
+	public final String unique;
+
+	public FTPListEntry(String name, String type, long size, long modified, String perm, String unique) {
+		this.name = name;
+		this.type = type;
+		this.size = size;
+		this.modified = modified;
+		this.perm = perm;
+		this.unique = unique;
+	}
+
+	// Parses one line of MLSD data, or the entry line of an MLST reply (with its leading
+	// space already removed)
+	public static FTPListEntry Parse(String line) throws ProtocolException {
+		// Facts end at the first space, everything after it is the name (which can contain
+		// spaces and semicolons of its own)
+		int nameStart = line.indexOf(' ');
+		if (nameStart < 0) {
+			throw new ProtocolException("Could not parse listing entry: " + line);
+		}
+
+		String type = null, perm = null, unique = null;
+		long size = -1, modified = -1;
+
+		int factStart = 0;
+		while (factStart < nameStart) {
+			int factEnd = line.indexOf(';', factStart);
+			if (factEnd < 0 || factEnd > nameStart) {
+				factEnd = nameStart;
+			}
+			int equals = line.indexOf('=', factStart);
+			if (equals > factStart && equals < factEnd) {
+				String fact = line.substring(factStart, equals);
+				int valueStart = equals + 1;
+				if (fact.equalsIgnoreCase("type")) {
+					type = internType(line.substring(valueStart, factEnd));
+				} else if (fact.equalsIgnoreCase("size") || fact.equalsIgnoreCase("sizd")) {
+					size = parseNumber(line, valueStart, factEnd);
+				} else if (fact.equalsIgnoreCase("modify")) {
+					modified = parseTime(line, valueStart, factEnd);
+				} else if (fact.equalsIgnoreCase("perm")) {
+					perm = line.substring(valueStart, factEnd);
+				} else if (fact.equalsIgnoreCase("unique")) {
+					unique = line.substring(valueStart, factEnd);
+				}
+				// Anything else (lang, media-type, UNIX.mode...) we have no use for yet
+			}
+			factStart = factEnd + 1;
+		}
+
+		return new FTPListEntry(line.substring(nameStart + 1), type, size, modified, perm, unique);
+	}
+
+	// Picks the entry line out of a whole MLST reply, which is the only one starting with a space
+	public static FTPListEntry ParseMLSTResponse(String response) throws ProtocolException {
+		for (String line : response.split(FTPConnection.CRLF)) {
+			if (line.startsWith(" ")) {
+				return Parse(line.substring(1));
+			}
+		}
+		throw new ProtocolException("Could not parse MLST response");
+	}
+
+	public boolean IsDirectory() {
+		return this.type == TYPE_DIR;
+	}
+
+	public boolean IsFile() {
+		return this.type == TYPE_FILE;
+	}
+
+	// The "." and ".." entries some servers include in MLSD output
+	public boolean IsDirectoryReference() {
+		return this.type == TYPE_CDIR || this.type == TYPE_PDIR;
+	}
+
+	// Types are case insensitive, and almost always one of a handful of values
+	private static String internType(String type) {
+		switch (type.toLowerCase(Locale.ROOT)) {
+		case TYPE_FILE:
+			return TYPE_FILE;
+		case TYPE_DIR:
+			return TYPE_DIR;
+		case TYPE_CDIR:
+			return TYPE_CDIR;
+		case TYPE_PDIR:
+			return TYPE_PDIR;
+		default:
+			return type.intern();
+		}
+	}
+
+	private static long parseNumber(String line, int start, int end) throws ProtocolException {
+		if (start == end) {
+			throw new ProtocolException("Could not parse listing entry: " + line);
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new ProtocolException("Could not parse listing entry: " + line);
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	// YYYYMMDDHHMMSS[.sss], always UTC
+	private static long parseTime(String line, int start, int end) throws ProtocolException {
+		if (end - start < 14) {
+			throw new ProtocolException("Could not parse listing time: " + line);
+		}
+		int year = (int)parseNumber(line, start, start + 4);
+		int month = (int)parseNumber(line, start + 4, start + 6);
+		int day = (int)parseNumber(line, start + 6, start + 8);
+		long hour = parseNumber(line, start + 8, start + 10);
+		long minute = parseNumber(line, start + 10, start + 12);
+		long second = parseNumber(line, start + 12, start + 14);
+
+		long millis = 0;
+		if (end - start > 15 && line.charAt(start + 14) == '.') {
+			// Only the first three digits of the fraction matter to us
+			int fractionEnd = Math.min(end, start + 18);
+			millis = parseNumber(line, start + 15, fractionEnd);
+			for (int i = fractionEnd - (start + 15); i < 3; i++) {
+				millis *= 10;
+			}
+		}
+
+		long days = daysFromCivil(year, month, day);
+		return ((days * 24 + hour) * 60 + minute) * 60000 + second * 1000 + millis;
+	}
+
+	// Days since 1970-01-01 for a proleptic Gregorian date, without going through a Calendar
+	private static long daysFromCivil(int year, int month, int day) {
+		year -= (month <= 2) ? 1 : 0;
+		long era = Math.floorDiv(year, 400);
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%-5s %12s %-20s %s",
+				(this.type == null) ? "?" : this.type,
+				(this.size < 0) ? "-" : Long.toString(this.size),
+				(this.modified < 0) ? "-" : Instant.ofEpochMilli(this.modified).toString(),
+				this.name);
+	}
+
+}
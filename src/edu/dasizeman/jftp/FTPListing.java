@@ -0,0 +1,84 @@
+package edu.dasizeman.jftp;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// A directory listing that is read from the data connection as it is iterated, so only one
+// line is held at a time no matter how big the directory is.  The completion reply is read
+// once the listing runs out, or when it's closed early (which aborts the transfer).
+public class FTPListing implements Iterator<String>, AutoCloseable {
+	private final FTPSession session;
+	private final FTPConnection dataConnection;
+	private final FTPTransferMetrics.Timer timer;
+	private String next;
+	private boolean finished;
+	private long total;
+
+	FTPListing(FTPSession session, FTPConnection dataConnection) {
+		this.session = session;
+		this.dataConnection = dataConnection;
+		this.timer = FTPMetrics.Transfers(FTPCommand.LIST).Start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.next == null && !this.finished) {
+			try {
+				this.next = this.dataConnection.ReadLine();
+			} catch (IOException e) {
+				this.timer.Failed();
+				throw new RuntimeException("Listing failed: " + e.getMessage());
+			}
+			if (this.next == null) {
+				finish(true);
+			} else {
+				this.timer.FirstByte();
+				this.total += this.next.length() + FTPConnection.CRLF.length();
+			}
+		}
+		return this.next != null;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String line = this.next;
+		this.next = null;
+		return line;
+	}
+
+	// Stops reading.  If the listing wasn't finished the server will see the data connection
+	// go away, and its abort reply is read so the session can be used again.
+	@Override
+	public void close() {
+		finish(false);
+	}
+
+	private void finish(boolean complete) {
+		if (this.finished) {
+			return;
+		}
+		this.finished = true;
+		this.next = null;
+		if (complete) {
+			this.timer.Finished(this.total);
+		} else {
+			this.timer.Failed();
+		}
+		this.session.ResetDataConnection();
+
+		FTPResponseData response;
+		try {
+			response = this.session.ReadResponse();
+		} catch (Exception e) {
+			throw new RuntimeException("Listing failed: " + e.getMessage());
+		}
+		if (complete && FTPClientManager.evaluate(FTPCommand.NOOP, response.code) != FTPState.SUCCESS) {
+			throw new RuntimeException("Listing failed: " + response.responseMessage);
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+package edu.dasizeman.jftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Remembers recent directory listings, so looking at the same directory again doesn't need a
+// new data connection.  Listings are keyed by the server, the user, the listing command and
+// the absolute path, expire after a while, and the least recently used ones are dropped once
+// there are too many.  Anything the client changes on the server should be invalidated.
+public class FTPListingCache {
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	// Listings with more lines than this aren't kept, they'd cost more memory than they save
+	public static final int MAX_CACHED_LINES = 10000;
+	
+	private static long defaultTTL = 30*1000;
+	
+	// Sets the time to live for caches created from now on.  Zero turns caching off.
+	public static void SetDefaultTTL(long millis) {
+		defaultTTL = millis;
+	}
+	
+	private static class CachedListing {
+		private final List<String> lines;
+		private final long expires;
+		
+		CachedListing(List<String> lines, long expires) {
+			this.lines = lines;
+			this.expires = expires;
+		}
+	}
+	
+	private final long ttl;
+	private final LinkedHashMap<String, CachedListing> listings;
+	
+	public FTPListingCache() {
+		this(DEFAULT_CAPACITY, defaultTTL);
+	}
+	
+	public FTPListingCache(final int capacity, long ttl) {
+		this.ttl = ttl;
+		
+		// Access order, so the eldest entry is the least recently used one
+		this.listings = new LinkedHashMap<String, CachedListing>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	public boolean IsEnabled() {
+		return this.ttl > 0;
+	}
+	
+	// The cached lines of a listing, or null if there are none (or they've gone stale)
+	public synchronized List<String> Get(FTPSession session, FTPCommand cmd, String path) {
+		String key = key(session, cmd, path);
+		CachedListing listing = this.listings.get(key);
+		if (listing == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() > listing.expires) {
+			this.listings.remove(key);
+			return null;
+		}
+		return listing.lines;
+	}
+	
+	public synchronized void Put(FTPSession session, FTPCommand cmd, String path, List<String> lines) {
+		if (!IsEnabled() || lines.size() > MAX_CACHED_LINES) {
+			return;
+		}
+		this.listings.put(key(session, cmd, path), 
+				new CachedListing(Collections.unmodifiableList(new ArrayList<String>(lines)), System.currentTimeMillis() + this.ttl));
+	}
+	
+	// Forgets every kind of listing of one directory
+	public synchronized void Invalidate(FTPSession session, String path) {
+		for (FTPCommand cmd : FTPCommand.values()) {
+			this.listings.remove(key(session, cmd, path));
+		}
+	}
+	
+	// Forgets everything cached for the server and user of a session, for when we don't know
+	// exactly what changed
+	public synchronized void InvalidateSession(FTPSession session) {
+		String prefix = sessionKey(session);
+		Iterator<String> it = this.listings.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+	
+	public synchronized void Clear() {
+		this.listings.clear();
+	}
+	
+	private static String sessionKey(FTPSession session) {
+		return session.GetHost() + " " + session.GetUser() + " ";
+	}
+	
+	private static String key(FTPSession session, FTPCommand cmd, String path) {
+		return sessionKey(session) + cmd.name() + " " + path;
+	}
+	
+}
@@ -0,0 +1,118 @@
+package edu.dasizeman.jftp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Where the client's instrumentation lives.  Everything is registered with the platform
+// MBean server under edu.dasizeman.jftp, so any JMX client (jconsole, a Prometheus JMX
+// exporter...) can scrape it, and the shell's 'stats' command prints the same numbers.
+public class FTPMetrics {
+	public static final String DOMAIN = "edu.dasizeman.jftp";
+
+	// Transfers are counted as one of these.  MLSD listings count as LIST, APPE as STOR.
+	private static final FTPCommand[] TRANSFER_KINDS = { FTPCommand.RETR, FTPCommand.LIST, FTPCommand.STOR };
+
+	private static Logger logger;
+	private static final Map<FTPCommand, FTPTransferMetrics> transfers;
+	private static final FTPLatencyMetrics dataConnections;
+	private static final ConcurrentMap<FTPCommand, FTPLatencyMetrics> roundTrips, clientOverheads;
+
+	static {
+		logger = Logger.getGlobal();
+		transfers = new EnumMap<FTPCommand, FTPTransferMetrics>(FTPCommand.class);
+		for (FTPCommand kind : TRANSFER_KINDS) {
+			FTPTransferMetrics metrics = new FTPTransferMetrics();
+			transfers.put(kind, metrics);
+			register("type=Transfers,name=" + kind.name(), metrics);
+		}
+		dataConnections = new FTPLatencyMetrics();
+		register("type=DataConnections,name=Setup", dataConnections);
+		roundTrips = new ConcurrentHashMap<FTPCommand, FTPLatencyMetrics>();
+		clientOverheads = new ConcurrentHashMap<FTPCommand, FTPLatencyMetrics>();
+	}
+
+	public static FTPTransferMetrics Transfers(FTPCommand kind) {
+		return transfers.get(kind);
+	}
+
+	// Time from starting to connect a data connection until it's connected
+	public static FTPLatencyMetrics DataConnections() {
+		return dataConnections;
+	}
+
+	// Time from writing a command on the control connection until its first reply shows up:
+	// the server and the network, and nothing of ours but reading the reply
+	public static FTPLatencyMetrics RoundTrip(FTPCommand cmd) {
+		return commandLatency(roundTrips, "ControlRoundTrip", cmd);
+	}
+
+	// Time the shell spends on a command that isn't spent waiting for the server: getting it
+	// out the door, and noticing its reply once it's been handled
+	public static FTPLatencyMetrics ClientOverhead(FTPCommand cmd) {
+		return commandLatency(clientOverheads, "ClientOverhead", cmd);
+	}
+
+	// Two lines for every command we've sent
+	public static List<String> LatencyReport() {
+		List<String> lines = new ArrayList<String>();
+		for (FTPCommand cmd : FTPCommand.values()) {
+			FTPLatencyMetrics roundTrip = roundTrips.get(cmd);
+			if (roundTrip == null) {
+				continue;
+			}
+			lines.add(cmd.name() + " round trip: " + roundTrip);
+			FTPLatencyMetrics overhead = clientOverheads.get(cmd);
+			if (overhead != null) {
+				lines.add(cmd.name() + " client overhead: " + overhead);
+			}
+		}
+		return lines;
+	}
+
+	// One line per kind of transfer, then data connection setup
+	public static List<String> Report() {
+		List<String> lines = new ArrayList<String>();
+		for (FTPCommand kind : TRANSFER_KINDS) {
+			lines.add(kind.name() + ": " + transfers.get(kind));
+		}
+		lines.add("Data connection setup: " + dataConnections);
+		return lines;
+	}
+
+	// Created (and registered) the first time a command is sent, so JMX only shows what's been used
+	private static FTPLatencyMetrics commandLatency(ConcurrentMap<FTPCommand, FTPLatencyMetrics> map, final String type, FTPCommand cmd) {
+		FTPLatencyMetrics metrics = map.get(cmd);
+		if (metrics == null) {
+			metrics = map.computeIfAbsent(cmd, key -> {
+				FTPLatencyMetrics created = new FTPLatencyMetrics();
+				register("type=" + type + ",name=" + key.name(), created);
+				return created;
+			});
+		}
+		return metrics;
+	}
+
+	static void register(String name, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":" + name);
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(mbean, objectName);
+			}
+		} catch (JMException | RuntimeException e) {
+			logger.log(Level.FINE, "Could not register MBean " + name + ": " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package edu.dasizeman.jftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Copies a remote directory tree to the local disk.  Every directory listing and every file
+// is its own fork-join task, so idle workers steal whatever is left instead of waiting on a
+// slow directory.  A task borrows a session for its listing or download and gives it back
+// when it's done.  Files that are already there with the same size and time are skipped, so
+// a mirror can be re-run to pick up where it stopped.
+public class FTPMirror {
+	public static final int DEFAULT_SESSIONS = 4;
+
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	private final FTPSessionPool pool;
+	private final String host, user, password;
+	private final int sessions;
+
+	// The fork-join pool can add threads to make up for ones blocked in a join, so it's the
+	// permits that keep us to the number of sessions we were given
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<FTPSession> idleSessions;
+
+	private final AtomicInteger files, skipped, failed;
+	private final AtomicLong bytes;
+
+	public FTPMirror(FTPSessionPool pool, String host, String user, String password, int sessions) {
+		this.pool = pool;
+		this.host = host;
+		this.user = user;
+		this.password = password;
+		this.sessions = sessions;
+		this.permits = new Semaphore(sessions);
+		this.idleSessions = new ConcurrentLinkedQueue<FTPSession>();
+		this.files = new AtomicInteger();
+		this.skipped = new AtomicInteger();
+		this.failed = new AtomicInteger();
+		this.bytes = new AtomicLong();
+	}
+
+	// Mirrors an absolute remote directory into a local one.  Failed files are logged and
+	// counted, and reported together at the end, so one bad file doesn't stop the rest.
+	public void Run(String remoteDirectory, String localDirectory) throws Exception {
+		long start = System.nanoTime();
+		ForkJoinPool workers = new ForkJoinPool(this.sessions);
+		try {
+			workers.invoke(new DirectoryTask(remoteDirectory, new File(localDirectory)));
+		} finally {
+			workers.shutdown();
+			FTPSession session;
+			while ((session = this.idleSessions.poll()) != null) {
+				this.pool.Release(session);
+			}
+		}
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		logger.log(Level.INFO, "Mirrored " + remoteDirectory + " to " + localDirectory + ": " + this.files.get() + " files, "
+				+ this.bytes.get() + " bytes, " + this.skipped.get() + " up to date, over " + this.sessions + " sessions in " + millis + " ms");
+		if (this.failed.get() > 0) {
+			throw new ProtocolException("mirror: " + this.failed.get() + " files or directories failed, see the log");
+		}
+	}
+
+	// A session logged in and in binary mode, waiting for one to be free if they're all in use.
+	// Every session borrowed goes back with returnSession() or dropSession().
+	private FTPSession borrowSession() throws Exception {
+		this.permits.acquire();
+		FTPSession session = this.idleSessions.poll();
+		if (session != null) {
+			return session;
+		}
+		try {
+			session = this.pool.Acquire(this.host, this.user, this.password);
+			session.Execute(FTPCommand.TYPE, "I");
+			return session;
+		} catch (Exception e) {
+			if (session != null) {
+				this.pool.Discard(session);
+			}
+			this.permits.release();
+			throw e;
+		}
+	}
+
+	private void returnSession(FTPSession session) {
+		this.idleSessions.add(session);
+		this.permits.release();
+	}
+
+	// After a failure the session may be in any state, so the next task starts over with a new one
+	private void dropSession(FTPSession session) {
+		this.pool.Discard(session);
+		this.permits.release();
+	}
+
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final String remotePath;
+		private final File localDirectory;
+
+		DirectoryTask(String remotePath, File localDirectory) {
+			this.remotePath = remotePath;
+			this.localDirectory = localDirectory;
+		}
+
+		@Override
+		protected void compute() {
+			List<FTPListEntry> entries = new ArrayList<FTPListEntry>();
+			try {
+				if (!this.localDirectory.isDirectory() && !this.localDirectory.mkdirs()) {
+					throw new Exception("Could not create " + this.localDirectory);
+				}
+				list(entries);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "mirror: could not list " + this.remotePath + ": " + e.getMessage());
+				failed.incrementAndGet();
+				return;
+			}
+
+			// Everything in here can go at once.  The session went back first, so the tasks
+			// below can have it while we wait for them.
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (FTPListEntry entry : entries) {
+				if (!entry.IsDirectory() && !entry.IsFile()) {
+					continue;
+				}
+				File childFile = localChild(entry.name);
+				if (childFile == null) {
+					logger.log(Level.WARNING, "mirror: skipping bad name \"" + entry.name + "\" in " + this.remotePath);
+					failed.incrementAndGet();
+					continue;
+				}
+				String childPath = FTPSession.ResolvePath(this.remotePath, entry.name);
+				if (entry.IsDirectory()) {
+					tasks.add(new DirectoryTask(childPath, childFile));
+				} else if (entry.IsFile()) {
+					tasks.add(new FileTask(childPath, childFile, entry));
+				}
+			}
+			invokeAll(tasks);
+		}
+
+		private void list(List<FTPListEntry> entries) throws Exception {
+			FTPSession session = borrowSession();
+			try (FTPEntryListing listing = session.MachineList(this.remotePath)) {
+				while (listing.hasNext()) {
+					entries.add(listing.next());
+				}
+			} catch (Exception e) {
+				dropSession(session);
+				throw e;
+			}
+			returnSession(session);
+		}
+
+		// Where a name from the listing goes locally, or null if it's not a plain name in this
+		// directory.  The names come from the server, which could send "../../.bashrc" or ".."
+		// to get us writing outside the tree or going around in circles.
+		private File localChild(String name) {
+			if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")
+					|| name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+				return null;
+			}
+			File child = new File(this.localDirectory, name);
+			try {
+				// Catches what's left, like a local symlink that points out of the tree
+				File directory = this.localDirectory.getCanonicalFile();
+				File canonical = child.getCanonicalFile();
+				if (!canonical.toPath().startsWith(directory.toPath()) || canonical.equals(directory)) {
+					return null;
+				}
+			} catch (IOException e) {
+				return null;
+			}
+			return child;
+		}
+	}
+
+	private class FileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final String remotePath;
+		private final File localFile;
+		private final FTPListEntry entry;
+
+		FileTask(String remotePath, File localFile, FTPListEntry entry) {
+			this.remotePath = remotePath;
+			this.localFile = localFile;
+			this.entry = entry;
+		}
+
+		@Override
+		protected void compute() {
+			if (upToDate()) {
+				skipped.incrementAndGet();
+				return;
+			}
+
+			try {
+				bytes.addAndGet(download());
+				files.incrementAndGet();
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "mirror: could not get " + this.remotePath + ": " + e.getMessage());
+				failed.incrementAndGet();
+				this.localFile.delete();
+				return;
+			}
+
+			// Keep the server's time, so the next run can tell the file hasn't changed
+			if (this.entry.modified >= 0) {
+				this.localFile.setLastModified(this.entry.modified);
+			}
+		}
+
+		private long download() throws Exception {
+			FTPSession session = borrowSession();
+			long received;
+			try (RandomAccessFile file = new RandomAccessFile(this.localFile, "rw")) {
+				file.setLength(0);
+				received = session.RetrieveSegment(this.remotePath, file.getChannel(), 0, Math.max(0, this.entry.size), true);
+			} catch (Exception e) {
+				dropSession(session);
+				throw e;
+			}
+			returnSession(session);
+			return received;
+		}
+
+		private boolean upToDate() {
+			return this.entry.size >= 0 && this.entry.modified >= 0 && this.localFile.isFile()
+					&& this.localFile.length() == this.entry.size
+					&& this.localFile.lastModified() / 1000 == this.entry.modified / 1000;
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package edu.dasizeman.jftp;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket for bytes, kept as the time at which the bucket will be back in credit
+// (GCRA), so taking tokens is one nanoTime() and one CAS no matter how many threads share it.
+// Taking more than there is doesn't block: the bucket goes into debt, and the caller is told
+// how long it should wait to pay it back.  That lets transfers hand over their bytes chunk by
+// chunk and only sleep once the debt is worth sleeping for.
+public class FTPRateLimiter {
+	// How much a bucket holds when full, as time at its rate.  An idle transfer can send this
+	// much at once before it gets paced.
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private volatile long bytesPerSecond;
+
+	// When the bucket will have nothing owed.  The tokens in it are (now - this), up to a burst.
+	private final AtomicLong paidUntil;
+
+	// Zero (or less) means unlimited
+	public FTPRateLimiter(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.paidUntil = new AtomicLong(System.nanoTime() - BURST_NANOS);
+	}
+
+	// Takes tokens for this many bytes, and returns how many nanoseconds the caller has to
+	// wait to stay under the rate (0 if the bucket had enough)
+	public long Take(long bytes) {
+		long rate = this.bytesPerSecond;
+		if (rate <= 0 || bytes <= 0) {
+			return 0;
+		}
+		long cost = (long)(bytes * 1e9 / rate);
+		while (true) {
+			long now = System.nanoTime();
+			long paid = this.paidUntil.get();
+
+			// A bucket that's been left alone only fills up to a burst
+			long next = Math.max(paid, now - BURST_NANOS) + cost;
+			if (this.paidUntil.compareAndSet(paid, next)) {
+				return Math.max(0, next - now);
+			}
+		}
+	}
+
+	// Takes effect for the bytes taken from now on, including by transfers already running
+	public void SetRate(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public long GetRate() {
+		return this.bytesPerSecond;
+	}
+
+	public boolean IsLimited() {
+		return this.bytesPerSecond > 0;
+	}
+
+	// Bytes per second from things like "500K", "20M" or "1.5G" (powers of 1024, like curl's
+	// --limit-rate).  "off" or 0 is unlimited.  Returns -1 if it isn't a rate.
+	public static long ParseRate(String rate) {
+		String text = rate.trim().toUpperCase(Locale.ROOT);
+		if (text.equals("OFF")) {
+			return 0;
+		}
+		long unit = 1;
+		if (text.endsWith("B")) {
+			text = text.substring(0, text.length() - 1);
+		}
+		if (text.endsWith("K")) {
+			unit = 1024L;
+		} else if (text.endsWith("M")) {
+			unit = 1024L*1024;
+		} else if (text.endsWith("G")) {
+			unit = 1024L*1024*1024;
+		}
+		if (unit > 1) {
+			text = text.substring(0, text.length() - 1);
+		}
+		try {
+			double value = Double.parseDouble(text);
+			if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+				return -1;
+			}
+			return (long)(value * unit);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// The other way around, for showing limits
+	public static String FormatRate(long bytesPerSecond) {
+		if (bytesPerSecond <= 0) {
+			return "unlimited";
+		}
+		String[] units = {"", "K", "M", "G"};
+		double value = bytesPerSecond;
+		int unit = 0;
+		while (value >= 1024 && unit < units.length - 1) {
+			value /= 1024;
+			unit++;
+		}
+		String number = (value == Math.rint(value)) ? Long.toString((long)value) : String.format(Locale.ROOT, "%.1f", value);
+		return number + units[unit] + "B/s";
+	}
+
+}
@@ -0,0 +1,172 @@
+package edu.dasizeman.jftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// One selector thread that does the reading and writing for any number of control and
+// data connections, instead of a thread per command.  Connections register a Handler and
+// get called back on the selector thread, so handlers must never block waiting on other
+// connections.
+public class FTPReactor implements Runnable {
+	private static final int READ_BUFFER_SIZE = 64*1024;
+	private static FTPReactor instance;
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	public interface Handler {
+		// Called with whatever was read.  The buffer is reused after this returns.
+		public void Read(ByteBuffer data) throws Exception;
+
+		// Called when the channel can take more data.  Return true once there is nothing
+		// left to write, which stops further calls until Write() is requested again.
+		public boolean Writable(SocketChannel channel) throws Exception;
+
+		// Called when the other end closes the connection
+		public void Closed() throws Exception;
+
+		// Called with anything the other callbacks throw, after the channel is closed
+		public void Failed(Throwable e);
+	}
+
+	public static synchronized FTPReactor getInstance() throws IOException {
+		if (instance == null) {
+			instance = new FTPReactor();
+			Thread t = new Thread(instance, "FTPReactor");
+			t.setDaemon(true);
+			t.start();
+		}
+		return instance;
+	}
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	// Shared by every channel, which is fine since only the selector thread touches it
+	private final ByteBuffer readBuffer;
+
+	private FTPReactor() throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	}
+
+	// Starts watching a channel.  It is switched to non-blocking mode, and reading starts
+	// right away.
+	public void Register(final SocketChannel channel, final Handler handler) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, handler);
+				} catch (IOException e) {
+					fail(channel, handler, e);
+				}
+			}
+		});
+	}
+
+	// Asks for the handler's Writable() to be called once the channel can take data
+	public void Write(final SocketChannel channel) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				SelectionKey key = channel.keyFor(selector);
+				if (key != null && key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+	}
+
+	private void submit(Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "FTPReactor: select failed: " + e.getMessage());
+				return;
+			}
+
+			Runnable task;
+			while ((task = this.tasks.poll()) != null) {
+				task.run();
+			}
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				handle(key);
+			}
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		SocketChannel channel = (SocketChannel)key.channel();
+		Handler handler = (Handler)key.attachment();
+		try {
+			if (key.isWritable() && handler.Writable(channel) && key.isValid()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+			if (key.isValid() && key.isReadable()) {
+				read(channel, handler);
+			}
+		} catch (CancelledKeyException e) {
+			// The handler closed its own channel, which is fine
+		} catch (Throwable e) {
+			fail(channel, handler, e);
+		}
+	}
+
+	// Drains what's there right now, without blocking
+	private void read(SocketChannel channel, Handler handler) throws Exception {
+		int count;
+		while (true) {
+			this.readBuffer.clear();
+			try {
+				count = channel.read(this.readBuffer);
+			} catch (ClosedChannelException e) {
+				return;
+			}
+			if (count <= 0) {
+				break;
+			}
+			this.readBuffer.flip();
+			handler.Read(this.readBuffer);
+		}
+
+		if (count < 0) {
+			channel.close();
+			handler.Closed();
+		}
+	}
+
+	private void fail(SocketChannel channel, Handler handler, Throwable e) {
+		try {
+			channel.close();
+		} catch (IOException closeException) {
+			logger.log(Level.FINE, closeException.getClass().getName() + closeException.getMessage());
+		}
+		handler.Failed(e);
+	}
+
+}
@@ -0,0 +1,212 @@
+package edu.dasizeman.jftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Splits the control stream into replies a byte at a time, without regexes or a String per
+// line.  A reply is one "ddd text" line, or a "ddd-text" line followed by anything up to a
+// line starting with the same code and a space (RFC 959 section 4.2).  Single line replies
+// come out without their CRLF, multiline ones with a CRLF after every line, the same as the
+// old line-based reader.  The same parser is fed from a blocking stream or from the reactor.
+public class FTPReplyParser {
+	private static final int INITIAL_CAPACITY = 256;
+
+	// A reply that goes on longer than this (like a line that never ends) is a broken server,
+	// not something to keep buffering
+	static final int MAX_REPLY_LENGTH = 1024*1024;
+
+	private byte[] reply;
+	private int length;
+
+	// Where the line being read starts in reply[], and whether we're inside a multiline reply
+	private int lineStart;
+	private boolean multiline;
+	private int code;
+
+	public FTPReplyParser() {
+		this.reply = new byte[INITIAL_CAPACITY];
+		reset();
+	}
+
+	// Blocks until a whole reply has been read.  The stream should be buffered.
+	public String Read(InputStream in) throws IOException {
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (consume((byte)b)) {
+				return finish();
+			}
+		}
+		throw new IOException("Connection closed");
+	}
+
+	// Reads from the buffer until a reply is complete, and returns it.  Returns null if the
+	// buffer ran out first; the partial reply is kept for the next call.
+	public String Feed(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			if (consume(data.get())) {
+				return finish();
+			}
+		}
+		return null;
+	}
+
+	// True once b completes a reply
+	private boolean consume(byte b) throws IOException {
+		if (b != '\n') {
+			append(b);
+			return false;
+		}
+
+		// Line is done.  Drop its CR, it's put back below for multiline replies.
+		if (this.length > this.lineStart && this.reply[this.length - 1] == '\r') {
+			this.length--;
+		}
+
+		boolean done;
+		if (this.lineStart == 0) {
+			// First line: "ddd-" starts a multiline reply, anything else is the whole reply
+			this.code = lineCode();
+			done = !(this.code >= 0 && this.length > 3 && this.reply[3] == '-');
+			this.multiline = !done;
+		} else {
+			// The last line repeats the code, followed by a space (or nothing at all)
+			done = lineCode() == this.code
+					&& (this.length - this.lineStart == 3 || this.reply[this.lineStart + 3] == ' ');
+		}
+
+		if (this.multiline) {
+			append((byte)'\r');
+			append((byte)'\n');
+		}
+		this.lineStart = this.length;
+		return done;
+	}
+
+	// The three digit code at the start of the current line, or -1
+	private int lineCode() {
+		if (this.length - this.lineStart < 3) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = this.lineStart; i < this.lineStart + 3; i++) {
+			int digit = this.reply[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private void append(byte b) throws IOException {
+		if (this.length == this.reply.length) {
+			if (this.length >= MAX_REPLY_LENGTH) {
+				reset();
+				throw new IOException("Reply longer than " + MAX_REPLY_LENGTH + " bytes");
+			}
+			this.reply = Arrays.copyOf(this.reply, Math.min(this.length * 2, MAX_REPLY_LENGTH));
+		}
+		this.reply[this.length++] = b;
+	}
+
+	private String finish() {
+		String result = new String(this.reply, 0, this.length, StandardCharsets.UTF_8);
+		reset();
+		return result;
+	}
+
+	private void reset() {
+		this.length = 0;
+		this.lineStart = 0;
+		this.multiline = false;
+		this.code = -1;
+
+		// Don't hang on to the buffer from one huge reply (like a long HELP)
+		if (this.reply.length > 16 * INITIAL_CAPACITY) {
+			this.reply = new byte[INITIAL_CAPACITY];
+		}
+	}
+
+	/* Parsing the text of replies */
+
+	// The three digit code a reply starts with, or -1 if it doesn't
+	public static int ParseCode(String reply) {
+		if (reply.length() < 3) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < 3; i++) {
+			int digit = reply.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	// "227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)" to "h1.h2.h3.h4:port".  Returns null if
+	// there's no tuple in the message.
+	public static String ParsePASV(String message) {
+		int i = message.indexOf('(');
+		if (i < 0) {
+			return null;
+		}
+		int[] values = new int[6];
+		i++;
+		for (int n = 0; n < 6; n++) {
+			int start = i;
+			int value = 0;
+			while (i < message.length() && message.charAt(i) >= '0' && message.charAt(i) <= '9') {
+				value = value * 10 + (message.charAt(i) - '0');
+				i++;
+				// Checked as we go, so a long run of digits can't wrap back into range
+				if (value > 255) {
+					return null;
+				}
+			}
+			char expected = (n == 5) ? ')' : ',';
+			if (i == start || i >= message.length() || message.charAt(i) != expected) {
+				return null;
+			}
+			values[n] = value;
+			i++;
+		}
+
+		StringBuilder host = new StringBuilder(21);
+		host.append(values[0]).append('.').append(values[1]).append('.').append(values[2]).append('.').append(values[3]);
+		host.append(':').append(values[4] * 256 + values[5]);
+		return host.toString();
+	}
+
+	// The port out of "229 Entering Extended Passive Mode (|||port|)", where '|' can be any
+	// delimiter the server likes (RFC 2428).  Returns -1 if it isn't there.
+	public static int ParseEPSVPort(String message) {
+		int i = message.indexOf('(');
+		if (i < 0 || i + 4 >= message.length()) {
+			return -1;
+		}
+		char delimiter = message.charAt(i + 1);
+		if (message.charAt(i + 2) != delimiter || message.charAt(i + 3) != delimiter) {
+			return -1;
+		}
+		i += 4;
+		int start = i;
+		int port = 0;
+		while (i < message.length() && message.charAt(i) >= '0' && message.charAt(i) <= '9') {
+			port = port * 10 + (message.charAt(i) - '0');
+			i++;
+			if (port > 65535) {
+				return -1;
+			}
+		}
+		if (i == start || i >= message.length() || message.charAt(i) != delimiter) {
+			return -1;
+		}
+		return port;
+	}
+
+}
@@ -1,8 +1,5 @@
 package edu.dasizeman.jftp;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public enum FTPResponse {
 	COMMAND_OK(200, "Command okay."),
 	UNRECOGNIZED_CMD(500, "Syntax error, command unrecognized."),
@@ -52,16 +49,20 @@ public enum FTPResponse {
 		this.message = message;
 	}
 	
-	private static final Map<Integer, FTPResponse> responseMap;
+	// Indexed by code, so looking one up doesn't box an Integer
+	private static final FTPResponse[] responsesByCode;
 	static {
-		responseMap = new HashMap<Integer, FTPResponse>();
+		responsesByCode = new FTPResponse[1000];
 		for (FTPResponse r: FTPResponse.values()) {
-			responseMap.put(r.code, r);
+			responsesByCode[r.code] = r;
 		}
 	}
 	
 	public static FTPResponse getByCode(int code) {
-		return responseMap.get(code);
+		if (code < 0 || code >= responsesByCode.length) {
+			return null;
+		}
+		return responsesByCode[code];
 	}
 
 }
@@ -1,10 +1,14 @@
 package edu.dasizeman.jftp;
 
 public class FTPResponseData {
+	public int code;
+	
+	// Null for codes we don't have a specific response for
 	public FTPResponse response;
 	public String responseMessage;
 	
-	public FTPResponseData(FTPResponse response, String message) {
+	public FTPResponseData(int code, FTPResponse response, String message) {
+		this.code = code;
 		this.response = response;
 		this.responseMessage = message;
 	}
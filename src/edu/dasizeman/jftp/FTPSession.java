@@ -0,0 +1,381 @@
+package edu.dasizeman.jftp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+// One FTP session: a control connection, the data connection currently in use (if any),
+// and who we're logged in as.  The shell's session is driven asynchronously by
+// FTPClientManager through GetControlConnection(); other users (segmented downloads,
+// the session pool) drive it command by command from the calling thread with Execute().
+public class FTPSession {
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	private FTPConnection control, data;
+	private String host;
+	private String user, password;
+	private long lastUsed;
+	
+	// Absolute path of the server's working directory, or null until we find out
+	private volatile String workingDirectory;
+	
+	// "A" or "I" once we've set a TYPE, null while it's still the server's default
+	private volatile String type;
+	
+	// MODE Z, and how hard we compress what we send in it
+	private volatile boolean compressed;
+
+	// The server said it was closing the connection (421)
+	private volatile boolean hungUp;
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	
+	// A limit for the transfers of this session on top of the global and host ones, or null
+	private volatile FTPRateLimiter transferLimit;
+
+	// Connects, but leaves the server greeting for the caller to read
+	public FTPSession(String host) throws Exception {
+		this.host = NormalizeHost(host);
+		this.control = new FTPConnection(this.host);
+		touch();
+	}
+
+	// Connects and reads the server greeting
+	public static FTPSession Open(String host) throws Exception {
+		FTPSession session = new FTPSession(host);
+		FTPResponseData greeting = FTPClientManager.parseResponse(session.control.ReadResponse());
+		if (FTPClientManager.evaluate(FTPCommand.NOOP, greeting.code) != FTPState.SUCCESS) {
+			session.control.close();
+			throw new ProtocolException(greeting.responseMessage);
+		}
+		return session;
+	}
+
+	// If no port is given, append the default port
+	public static String NormalizeHost(String host) {
+		if (!host.contains(":")) {
+			host = host + ":" + Integer.toString(FTPConnection.DEFAULT_PORT);
+		}
+		return host;
+	}
+
+	public void Login(String user, String password) throws Exception {
+		FTPResponseData response = Execute(FTPCommand.USER, user);
+
+		// A 2xx to USER means no password is needed
+		if (FTPClientManager.evaluate(FTPCommand.USER, response.code) == FTPState.BEGIN) {
+			Execute(FTPCommand.PASS, password);
+		}
+		SetCredentials(user, password);
+	}
+
+	// Sends a command and reads its reply.  Throws if the reply puts the state machine in FAILURE.
+	public FTPResponseData Execute(FTPCommand cmd, String argument) throws Exception {
+		String command = cmd.name();
+		if (argument != null && !argument.equals("")) {
+			command += " " + argument;
+		}
+
+		touch();
+		long start = System.nanoTime();
+		String reply = this.control.Execute(command);
+		FTPMetrics.RoundTrip(cmd).Record(System.nanoTime() - start);
+		FTPResponseData response = FTPClientManager.parseResponse(reply);
+		FTPState state = FTPClientManager.evaluate(cmd, response.code);
+		if (state == FTPState.FAILURE) {
+			throw new ProtocolException(cmd.name() + ":" + response.responseMessage);
+		}
+		if (state == FTPState.SUCCESS) {
+			TrackState(cmd, argument, response);
+		}
+		return response;
+	}
+
+	// Waits for the reply that follows a 1xx preliminary reply
+	public FTPResponseData ReadResponse() throws Exception {
+		return FTPClientManager.parseResponse(this.control.ReadResponse());
+	}
+
+	// Sends PASV and connects to the port the server gives us
+	public FTPConnection OpenPassiveData() throws Exception {
+		FTPResponseData response = Execute(FTPCommand.PASV, null);
+		String dataHost = FTPClientManager.parsePASVResponse(response.responseMessage);
+		return OpenDataConnection(dataHost, FTPCommand.PASV);
+	}
+
+	// Replaces the session's data connection with a new one to the given host
+	public FTPConnection OpenDataConnection(String dataHost, FTPCommand type) throws Exception {
+		ResetDataConnection();
+		this.data = new FTPConnection(dataHost, type);
+		this.data.SetCompression(this.compressed, this.compressionLevel);
+		this.data.SetAscii("A".equals(this.type));
+		this.data.SetThrottle(FTPThrottle.For(this.host, this.transferLimit));
+		return this.data;
+	}
+
+	// Tells the data connection the server has started the transfer it was opened for
+	public void DataAccepted() {
+		if (this.data != null) {
+			this.data.Accepted();
+		}
+	}
+
+	public void ResetDataConnection() {
+		if (this.data == null) {
+			return;
+		}
+		try {
+			this.data.close();
+		} catch (Exception e) {
+			logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+		}
+		this.data = null;
+	}
+
+	// Puts the session in TYPE I and MODE S unless it already is, for transfers that work in
+	// file offsets.  Sessions from the pool keep whatever an earlier user left them in.
+	public void UseBinaryStream() throws Exception {
+		if (!"I".equals(this.type)) {
+			Execute(FTPCommand.TYPE, "I");
+		}
+		if (this.compressed) {
+			Execute(FTPCommand.MODE, "S");
+		}
+	}
+
+	// Downloads [offset, offset + length) of a remote file into the same region of a local
+	// file.  The session must already be in binary stream mode (UseBinaryStream).  If the segment stops short of the
+	// end of the file, the data connection is closed early and the server's abort reply is
+	// expected.
+	public long RetrieveSegment(String path, FileChannel file, long offset, long length, boolean lastSegment) throws Exception {
+		FTPConnection dataConnection = OpenPassiveData();
+		long received;
+		try {
+			if (offset > 0) {
+				Execute(FTPCommand.REST, Long.toString(offset));
+			}
+			FTPResponseData response = Execute(FTPCommand.RETR, path);
+			if (FTPClientManager.evaluate(FTPCommand.RETR, response.code) != FTPState.WAIT) {
+				throw new ProtocolException("RETR:" + response.responseMessage);
+			}
+
+			received = dataConnection.ReceiveToFile(file, offset, lastSegment ? -1 : length);
+		} finally {
+			ResetDataConnection();
+		}
+
+		// Completion for the last segment, or the abort we caused for the others
+		FTPResponseData response = ReadResponse();
+		FTPState state = FTPClientManager.evaluate(FTPCommand.NOOP, response.code);
+		if (received < length || (lastSegment && state != FTPState.SUCCESS)) {
+			throw new ProtocolException("Segment at " + offset + " failed after " + received + " bytes: " + response.responseMessage);
+		}
+		return received;
+	}
+
+	// Starts a LIST and returns the lines as they arrive.  The listing has to be read to the
+	// end or closed before the session is used for anything else.
+	public FTPListing List(String path) throws Exception {
+		return startListing(FTPCommand.LIST, path);
+	}
+
+	// Same as List(), but with MLSD, so the entries come back already parsed
+	public FTPEntryListing MachineList(String path) throws Exception {
+		return new FTPEntryListing(startListing(FTPCommand.MLSD, path));
+	}
+
+	// The facts for a single file or directory, over the control connection
+	public FTPListEntry MachineStat(String path) throws Exception {
+		return FTPListEntry.ParseMLSTResponse(Execute(FTPCommand.MLST, path).responseMessage);
+	}
+
+	private FTPListing startListing(FTPCommand cmd, String path) throws Exception {
+		FTPConnection dataConnection = OpenPassiveData();
+		try {
+			FTPResponseData response = Execute(cmd, path);
+			if (FTPClientManager.evaluate(cmd, response.code) != FTPState.WAIT) {
+				throw new ProtocolException(cmd.name() + ":" + response.responseMessage);
+			}
+		} catch (Exception e) {
+			ResetDataConnection();
+			throw e;
+		}
+		return new FTPListing(this, dataConnection);
+	}
+
+	// Health check for idle sessions: servers drop sessions that sit around too long
+	public boolean IsAlive() {
+		try {
+			Execute(FTPCommand.NOOP, null);
+			return true;
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Session to " + this.host + " failed NOOP: " + e.getMessage());
+			return false;
+		}
+	}
+
+	// Keeps track of the working directory and transfer mode after a command succeeds
+	public void TrackState(FTPCommand cmd, String argument, FTPResponseData response) {
+		switch (cmd) {
+		case MODE:
+			this.compressed = argument.equalsIgnoreCase("Z");
+			break;
+		case TYPE:
+			// A (with any format) is text, I and L 8 are both binary
+			this.type = argument.toUpperCase(Locale.ROOT).startsWith("A") ? "A" : "I";
+			break;
+		case CWD:
+			this.workingDirectory = ResolvePath(this.workingDirectory, argument);
+			break;
+		case CDUP:
+			this.workingDirectory = ResolvePath(this.workingDirectory, "..");
+			break;
+		case PWD:
+			try {
+				this.workingDirectory = FTPClientManager.parsePWDResponse(response.responseMessage);
+			} catch (ProtocolException e) {
+				this.workingDirectory = null;
+			}
+			break;
+		case USER:
+		case PASS:
+			// Logging in (again) puts us in the user's home directory, wherever that is
+			this.workingDirectory = null;
+			break;
+		default:
+			break;
+		}
+	}
+	
+	// Where a path given to the server ends up, or null if it's relative and we don't know
+	// where we're starting from
+	public static String ResolvePath(String base, String path) {
+		if (path == null || path.equals("")) {
+			return base;
+		}
+		if (!path.startsWith("/")) {
+			if (base == null) {
+				return null;
+			}
+			path = base + "/" + path;
+		}
+		
+		List<String> parts = new ArrayList<String>();
+		for (String part : path.split("/")) {
+			if (part.equals("") || part.equals(".")) {
+				continue;
+			}
+			if (part.equals("..")) {
+				if (!parts.isEmpty()) {
+					parts.remove(parts.size() - 1);
+				}
+				continue;
+			}
+			parts.add(part);
+		}
+		return "/" + String.join("/", parts);
+	}
+	
+	public String GetWorkingDirectory() {
+		return this.workingDirectory;
+	}
+	
+	public String GetType() {
+		return this.type;
+	}
+	
+	// Whether the server has agreed to MODE Z
+	public boolean IsCompressed() {
+		return this.compressed;
+	}
+	
+	// The deflate level (0-9, or -1 for zlib's default) for data we send in MODE Z
+	public void SetCompressionLevel(int level) {
+		this.compressionLevel = level;
+	}
+	
+	public int GetCompressionLevel() {
+		return this.compressionLevel;
+	}
+	
+	// Holds the data connections opened from now on to this limit (which can be shared with
+	// other sessions, to cap them together), or lifts it when null
+	public void LimitTransfers(FTPRateLimiter limit) {
+		this.transferLimit = limit;
+	}
+	
+	public FTPConnection GetControlConnection() {
+		touch();
+		return this.control;
+	}
+
+	public void SetCredentials(String user, String password) {
+		this.user = user;
+		this.password = password;
+	}
+
+	public boolean IsLoggedIn() {
+		return this.user != null;
+	}
+
+	public String GetHost() {
+		return this.host;
+	}
+
+	public String GetUser() {
+		return this.user;
+	}
+
+	public String GetPassword() {
+		return this.password;
+	}
+
+	public long GetLastUsed() {
+		return this.lastUsed;
+	}
+
+	void touch() {
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	// Sends QUIT and closes the control connection, ignoring errors since we're done anyway
+	public void Close() {
+		ResetDataConnection();
+		try {
+			this.control.Execute(FTPCommand.QUIT.name());
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.FINE, "Session to " + this.host + " did not close cleanly: " + e.getMessage());
+		}
+		Disconnect();
+	}
+
+	// For a 421: the server is closing the connection, so there's no one to send anything to
+	public void HungUp() {
+		this.hungUp = true;
+		Disconnect();
+	}
+
+	public boolean IsHungUp() {
+		return this.hungUp;
+	}
+
+	// Closes the control connection without saying goodbye, for when the server already
+	// has (or when it's not answering)
+	public void Disconnect() {
+		ResetDataConnection();
+		try {
+			this.control.close();
+		} catch (Exception e) {
+			logger.log(Level.FINE, e.getClass().getName() + e.getMessage());
+		}
+	}
+
+}
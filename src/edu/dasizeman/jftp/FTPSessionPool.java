@@ -0,0 +1,182 @@
+package edu.dasizeman.jftp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Keeps logged-in sessions that nobody is using around, so that going back to a server
+// (or opening extra sessions to it) doesn't have to reconnect and log in again.  Idle
+// sessions are keyed by host, port and user, checked with a NOOP before they are handed
+// out, and closed once they have been idle for too long or the pool is over capacity.
+public class FTPSessionPool {
+	public static final int DEFAULT_CAPACITY = 16;
+	public static final long DEFAULT_IDLE_TIMEOUT = 120*1000;
+
+	private static Logger logger;
+
+	static {
+		logger = Logger.getGlobal();
+	}
+
+	// Identifies the sessions that can stand in for each other
+	private static class SessionKey {
+		private final String host, user;
+
+		SessionKey(String host, String user) {
+			this.host = FTPSession.NormalizeHost(host);
+			this.user = user;
+		}
+
+		// A null user matches any user on the same host and port
+		boolean matches(SessionKey other) {
+			return this.host.equals(other.host) && (this.user == null || this.user.equals(other.user));
+		}
+	}
+
+	private final int capacity;
+	private final long idleTimeout;
+
+	// Most recently released first
+	private final LinkedList<FTPSession> idle;
+	private final Timer evictionTimer;
+
+	public FTPSessionPool() {
+		this(DEFAULT_CAPACITY, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	public FTPSessionPool(int capacity, long idleTimeout) {
+		this.capacity = capacity;
+		this.idleTimeout = idleTimeout;
+		this.idle = new LinkedList<FTPSession>();
+
+		// Sweep for stale sessions in the background, so idle connections don't linger
+		// until the next time someone happens to use the pool
+		this.evictionTimer = new Timer("FTPSessionPool eviction", true);
+		this.evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeAll(takeExpired());
+			}
+		}, idleTimeout, Math.max(1, idleTimeout / 2));
+	}
+
+	// Hands out a warm session for the host and user if there is one that still answers, or
+	// null.  A null user takes the most recently used session for the host, whoever it is
+	// logged in as.
+	public FTPSession Acquire(String host, String user) {
+		SessionKey key = new SessionKey(host, user);
+		closeAll(takeExpired());
+
+		FTPSession session;
+		while ((session = take(key)) != null) {
+			if (session.IsAlive()) {
+				logger.log(Level.FINE, "Reusing session to " + session.GetHost() + " as " + session.GetUser());
+				return session;
+			}
+			session.Disconnect();
+		}
+		return null;
+	}
+
+	// Like Acquire(), but connects and logs in a new session if there isn't a warm one
+	public FTPSession Acquire(String host, String user, String password) throws Exception {
+		FTPSession session = Acquire(host, user);
+		if (session != null) {
+			return session;
+		}
+
+		session = FTPSession.Open(host);
+		try {
+			session.Login(user, password);
+		} catch (Exception e) {
+			session.Disconnect();
+			throw e;
+		}
+		return session;
+	}
+
+	// Gives a session back once its user is done with it.  Only logged-in sessions with no
+	// command in flight should come back here; anything else is closed.
+	public void Release(FTPSession session) {
+		if (session == null) {
+			return;
+		}
+		if (!session.IsLoggedIn()) {
+			session.Close();
+			return;
+		}
+
+		session.ResetDataConnection();
+		session.touch();
+		List<FTPSession> evicted = new ArrayList<FTPSession>();
+		synchronized (this) {
+			this.idle.addFirst(session);
+			while (this.idle.size() > this.capacity) {
+				evicted.add(this.idle.removeLast());
+			}
+		}
+		closeAll(evicted);
+	}
+
+	// For sessions that are broken or already closed by the server
+	public void Discard(FTPSession session) {
+		if (session != null) {
+			session.Disconnect();
+		}
+	}
+
+	// Politely closes every idle session, and stops the eviction thread
+	public void Close() {
+		this.evictionTimer.cancel();
+		List<FTPSession> sessions;
+		synchronized (this) {
+			sessions = new ArrayList<FTPSession>(this.idle);
+			this.idle.clear();
+		}
+		closeAll(sessions);
+	}
+
+	public synchronized int IdleCount() {
+		return this.idle.size();
+	}
+
+	private synchronized FTPSession take(SessionKey key) {
+		Iterator<FTPSession> it = this.idle.iterator();
+		while (it.hasNext()) {
+			FTPSession session = it.next();
+			if (key.matches(new SessionKey(session.GetHost(), session.GetUser()))) {
+				it.remove();
+				return session;
+			}
+		}
+		return null;
+	}
+
+	private synchronized List<FTPSession> takeExpired() {
+		List<FTPSession> expired = new ArrayList<FTPSession>();
+		long now = System.currentTimeMillis();
+		Iterator<FTPSession> it = this.idle.iterator();
+		while (it.hasNext()) {
+			FTPSession session = it.next();
+			if (now - session.GetLastUsed() > this.idleTimeout) {
+				it.remove();
+				expired.add(session);
+			}
+		}
+		return expired;
+	}
+
+	// Network I/O, so never called while holding the lock
+	private void closeAll(List<FTPSession> sessions) {
+		for (FTPSession session : sessions) {
+			logger.log(Level.FINE, "Closing idle session to " + session.GetHost() + " as " + session.GetUser());
+			session.Close();
+		}
+	}
+
+}
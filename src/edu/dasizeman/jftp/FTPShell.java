@@ -1,12 +1,13 @@
 package edu.dasizeman.jftp;
 
+import java.util.List;
+
 public class FTPShell extends Shell {
-	
 	private ProtocolManager manager;
 	
 	public FTPShell(String logPath) {
 		super(logPath);
-		manager = FTPClientManager.getInstance();
+		manager = new FTPClientManager();
 	}
 	@Override
 	public void doCommand(String commandStr) throws Throwable {
@@ -21,11 +22,32 @@ public class FTPShell extends Shell {
 		
 	}
 
+	// Script commands are pipelined like a batch, so they only wait for each other where one
+	// needs an earlier one's reply.  Every transfer waits for what came before it, so a failure
+	// is always caught before the next file moves.
+	@Override
+	protected void doCommands(List<String> commands) throws Throwable {
+		try {
+			manager.Pipeline(commands);
+		} catch (Exception e) {
+			manager.Reset();
+			throw e;
+		}
+	}
+
 	@Override
 	protected String welcomeMessage() {
 		return "Welcome to JFTP";
 	}
 
+	// Leave the command latencies in the log file, for looking into slow sessions afterwards
+	@Override
+	protected void exiting() {
+		for (String line : FTPMetrics.LatencyReport()) {
+			logToFile(line);
+		}
+	}
+
 	@Override
 	protected void init() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,134 @@
+package edu.dasizeman.jftp;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Where the blocking code paths get their threads: the reader threads of FTPConnection, and
+// the server's thread-per-session mode.  PLATFORM starts a new thread for every task like we
+// always have, POOLED reuses idle ones, and VIRTUAL uses Java 21 virtual threads so blocking
+// sequential code costs about as much as a selector callback.  We still build for Java 8, so
+// virtual threads are looked up by reflection, and we fall back to POOLED without them.
+public class FTPThreads {
+	public enum Mode {
+		PLATFORM,
+		POOLED,
+		VIRTUAL
+	}
+
+	private static Logger logger;
+	private static volatile Mode mode = Mode.PLATFORM;
+
+	// Null when the JVM doesn't have virtual threads
+	private static final ThreadFactory virtualThreads;
+	private static ExecutorService pool;
+
+	static {
+		logger = Logger.getGlobal();
+		virtualThreads = loadVirtualThreadFactory();
+	}
+
+	public static boolean VirtualThreadsAvailable() {
+		return virtualThreads != null;
+	}
+
+	// Sets the mode used by Start(task, handler), and returns the one we actually got
+	public static Mode SetMode(Mode requested) {
+		mode = Resolve(requested);
+		return mode;
+	}
+
+	public static Mode GetMode() {
+		return mode;
+	}
+
+	// The mode we'd really use when asked for this one
+	public static Mode Resolve(Mode requested) {
+		if (requested == Mode.VIRTUAL && virtualThreads == null) {
+			logger.log(Level.WARNING, "Virtual threads need Java 21, using a thread pool instead");
+			return Mode.POOLED;
+		}
+		return requested;
+	}
+
+	// "platform", "pooled" or "virtual", or null if it's none of those
+	public static Mode ParseMode(String name) {
+		try {
+			return Mode.valueOf(name.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public static void Start(Runnable task, UncaughtExceptionHandler handler) {
+		Start(mode, task, handler);
+	}
+
+	// Runs task on a thread of the given mode.  Anything it throws goes to handler.
+	public static void Start(Mode threadMode, final Runnable task, final UncaughtExceptionHandler handler) {
+		switch (Resolve(threadMode)) {
+		case VIRTUAL:
+			start(virtualThreads.newThread(task), handler);
+			break;
+		case POOLED:
+			getPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (Throwable e) {
+						if (handler == null) {
+							throw e;
+						}
+						handler.uncaughtException(Thread.currentThread(), e);
+					}
+				}
+			});
+			break;
+		default:
+			start(new Thread(task), handler);
+			break;
+		}
+	}
+
+	private static void start(Thread thread, UncaughtExceptionHandler handler) {
+		if (handler != null) {
+			thread.setUncaughtExceptionHandler(handler);
+		}
+		thread.start();
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			// Daemon threads, so idle ones don't keep the JVM around after the shell quits
+			pool = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "FTPThreads-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	// Thread.ofVirtual().name("FTPVirtual-", 0).factory(), if this JVM has it
+	private static ThreadFactory loadVirtualThreadFactory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "FTPVirtual-", 0L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+}
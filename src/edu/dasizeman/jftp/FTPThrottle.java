@@ -0,0 +1,140 @@
+package edu.dasizeman.jftp;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// The bandwidth limits a data connection has to stay under: the global one shared by every
+// transfer, the one for the host it's talking to, and its own if it was given one.  The
+// connection reports bytes with Pace() as it moves them, which takes them from every bucket
+// and only sleeps once the debt is big enough to be worth a sleep, so small chunks cost a
+// nanoTime() and a CAS per bucket instead of a sleep each.
+public class FTPThrottle {
+	// Debt smaller than this is carried over to the next chunk instead of slept off
+	private static final long MIN_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// Chunks for the raw (transferFrom/transferTo) copies are about this much time at the
+	// slowest rate, so the kernel still gets big copies but the pacing stays smooth
+	private static final long CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final int MIN_CHUNK_SIZE = 16*1024;
+	private static final int MAX_CHUNK_SIZE = 8*1024*1024;
+
+	private static final FTPRateLimiter global = new FTPRateLimiter(0);
+	private static final ConcurrentHashMap<String, FTPRateLimiter> hosts = new ConcurrentHashMap<String, FTPRateLimiter>();
+
+	private final FTPRateLimiter[] limiters;
+
+	private FTPThrottle(List<FTPRateLimiter> limiters) {
+		this.limiters = limiters.toArray(new FTPRateLimiter[limiters.size()]);
+	}
+
+	// The throttle for a transfer to host (with or without a port), or null if nothing
+	// limits it, so unthrottled transfers keep their fast paths.  transferLimit is the
+	// transfer's own limit, or null.  Global and host limits are checked when the transfer
+	// starts, but changing a limit that's already on slows down (or speeds up) running
+	// transfers too.
+	public static FTPThrottle For(String host, FTPRateLimiter transferLimit) {
+		List<FTPRateLimiter> limiters = new ArrayList<FTPRateLimiter>();
+		if (transferLimit != null && transferLimit.IsLimited()) {
+			limiters.add(transferLimit);
+		}
+		FTPRateLimiter hostLimit = hosts.get(hostName(host));
+		if (hostLimit != null && hostLimit.IsLimited()) {
+			limiters.add(hostLimit);
+		}
+		if (global.IsLimited()) {
+			limiters.add(global);
+		}
+		return limiters.isEmpty() ? null : new FTPThrottle(limiters);
+	}
+
+	// Caps all transfers together.  0 lifts the limit.
+	public static void SetGlobalRate(long bytesPerSecond) {
+		global.SetRate(bytesPerSecond);
+	}
+
+	// Caps all transfers to a host together.  0 lifts the limit.
+	public static void SetHostRate(String host, long bytesPerSecond) {
+		String name = hostName(host);
+		if (bytesPerSecond <= 0) {
+			FTPRateLimiter limiter = hosts.remove(name);
+			if (limiter != null) {
+				// Transfers that already have it shouldn't stay limited
+				limiter.SetRate(0);
+			}
+			return;
+		}
+		FTPRateLimiter limiter = hosts.get(name);
+		if (limiter == null) {
+			limiter = new FTPRateLimiter(bytesPerSecond);
+			FTPRateLimiter existing = hosts.putIfAbsent(name, limiter);
+			if (existing != null) {
+				limiter = existing;
+			}
+		}
+		limiter.SetRate(bytesPerSecond);
+	}
+
+	// The limits that are on, one per line
+	public static String Describe() {
+		StringBuilder result = new StringBuilder();
+		result.append("global: ").append(FTPRateLimiter.FormatRate(global.GetRate())).append("\n");
+		for (Map.Entry<String, FTPRateLimiter> entry : new TreeMap<String, FTPRateLimiter>(hosts).entrySet()) {
+			result.append(entry.getKey()).append(": ").append(FTPRateLimiter.FormatRate(entry.getValue().GetRate())).append("\n");
+		}
+		return result.toString();
+	}
+
+	// Takes tokens for bytes that were (or are about to be) moved, and sleeps if we're far
+	// enough ahead of the slowest limit
+	public void Pace(long bytes) throws InterruptedIOException {
+		long wait = 0;
+		for (FTPRateLimiter limiter : this.limiters) {
+			wait = Math.max(wait, limiter.Take(bytes));
+		}
+		if (wait < MIN_SLEEP_NANOS) {
+			return;
+		}
+
+		long deadline = System.nanoTime() + wait;
+		while (wait > 0) {
+			LockSupport.parkNanos(this, wait);
+			if (Thread.interrupted()) {
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+			wait = deadline - System.nanoTime();
+		}
+	}
+
+	// How much to hand a raw copy at a time
+	public long ChunkSize() {
+		long rate = Long.MAX_VALUE;
+		for (FTPRateLimiter limiter : this.limiters) {
+			long limit = limiter.GetRate();
+			if (limit > 0) {
+				rate = Math.min(rate, limit);
+			}
+		}
+		if (rate == Long.MAX_VALUE) {
+			return MAX_CHUNK_SIZE;
+		}
+		long chunk = (long)(rate * (CHUNK_NANOS / 1e9));
+		return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunk));
+	}
+
+	// Limits are per host name, whatever port the server is on
+	private static String hostName(String host) {
+		int colon = host.lastIndexOf(':');
+		if (colon > 0 && host.indexOf(':') == colon) {
+			host = host.substring(0, colon);
+		}
+		return host.toLowerCase(Locale.ROOT);
+	}
+
+}
@@ -0,0 +1,128 @@
+package edu.dasizeman.jftp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and histograms for one kind of data transfer (RETR, LIST or STOR).  Each transfer
+// gets a Timer when it starts, which records it when it's done.
+public class FTPTransferMetrics implements FTPTransferMetricsMBean {
+	private final LongAdder transfers, failures, bytes, nanos;
+	private final FTPHistogram duration, firstByte;
+	private volatile double lastBytesPerSecond;
+
+	public class Timer {
+		private final long start;
+		private long firstByteAt;
+		private boolean done;
+
+		private Timer() {
+			this.start = System.nanoTime();
+		}
+
+		// Call when data first shows up.  Later calls are ignored.
+		public void FirstByte() {
+			if (this.firstByteAt == 0) {
+				this.firstByteAt = System.nanoTime();
+			}
+		}
+
+		public void Finished(long count) {
+			if (this.done) {
+				return;
+			}
+			this.done = true;
+			long elapsed = System.nanoTime() - this.start;
+			transfers.increment();
+			bytes.add(count);
+			nanos.add(elapsed);
+			duration.Record(elapsed);
+			if (this.firstByteAt != 0) {
+				firstByte.Record(this.firstByteAt - this.start);
+			}
+			if (elapsed > 0) {
+				lastBytesPerSecond = count * 1e9 / elapsed;
+			}
+		}
+
+		public void Failed() {
+			if (this.done) {
+				return;
+			}
+			this.done = true;
+			failures.increment();
+		}
+	}
+
+	public FTPTransferMetrics() {
+		this.transfers = new LongAdder();
+		this.failures = new LongAdder();
+		this.bytes = new LongAdder();
+		this.nanos = new LongAdder();
+		this.duration = new FTPHistogram();
+		this.firstByte = new FTPHistogram();
+	}
+
+	public Timer Start() {
+		return new Timer();
+	}
+
+	@Override
+	public long getTransfers() {
+		return this.transfers.sum();
+	}
+
+	@Override
+	public long getFailures() {
+		return this.failures.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return this.bytes.sum();
+	}
+
+	// Over all the finished transfers, as if they'd run one after another
+	@Override
+	public double getBytesPerSecond() {
+		long total = this.nanos.sum();
+		return (total == 0) ? 0 : this.bytes.sum() * 1e9 / total;
+	}
+
+	@Override
+	public double getLastBytesPerSecond() {
+		return this.lastBytesPerSecond;
+	}
+
+	@Override
+	public double getDurationP50Millis() {
+		return this.duration.GetPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getDurationP99Millis() {
+		return this.duration.GetPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getDurationMaxMillis() {
+		return this.duration.GetMax() / 1e6;
+	}
+
+	@Override
+	public double getFirstByteP50Millis() {
+		return this.firstByte.GetPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getFirstByteP99Millis() {
+		return this.firstByte.GetPercentile(99) / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d transfers (%d failed), %d bytes, %.0f bytes/sec; duration p50 %.2f ms, p99 %.2f ms, max %.2f ms; first byte p50 %.2f ms, p99 %.2f ms",
+				getTransfers(), getFailures(), getBytes(), getBytesPerSecond(),
+				getDurationP50Millis(), getDurationP99Millis(), getDurationMaxMillis(),
+				getFirstByteP50Millis(), getFirstByteP99Millis());
+	}
+
+}
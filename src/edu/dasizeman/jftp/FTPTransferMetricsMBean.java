@@ -0,0 +1,15 @@
+package edu.dasizeman.jftp;
+
+// JMX view of an FTPTransferMetrics
+public interface FTPTransferMetricsMBean {
+	public long getTransfers();
+	public long getFailures();
+	public long getBytes();
+	public double getBytesPerSecond();
+	public double getLastBytesPerSecond();
+	public double getDurationP50Millis();
+	public double getDurationP99Millis();
+	public double getDurationMaxMillis();
+	public double getFirstByteP50Millis();
+	public double getFirstByteP99Millis();
+}
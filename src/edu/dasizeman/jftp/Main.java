@@ -1,18 +1,122 @@
 package edu.dasizeman.jftp;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
 public class Main {
 
 	public static void main(String[] args) {
 		String[] requiredArgs = new String[]{"-log"};
-		ParseMap parsedArgs = Parser.Parse(args, requiredArgs);
+		String[] optionalArgs = new String[]{"-nio", "-cachettl", "-threads", "-asynclog", "-loglevel", "-script", "-c"};
+		ParseMap parsedArgs = Parser.Parse(args, requiredArgs, optionalArgs);
 		
 		if (parsedArgs == null) {
 			System.out.println("Must specify path to log file with -log");
+			System.out.println("Use -nio to run all connections on a single selector thread");
+			System.out.println("Use -cachettl <seconds> to set how long directory listings are cached (0 turns it off)");
+			System.out.println("Use -threads <platform|pooled|virtual> to choose the threads connections run on without -nio");
+			System.out.println("Use -asynclog to write the log on a background thread");
+			System.out.println("Use -loglevel <level> to log less than everything (INFO, FINE, ...)");
+			System.out.println("Use -script <file> to run the commands in a file (one per line) instead of prompting");
+			System.out.println("Use -c \"<command>; <command>; ...\" to run the given commands instead of prompting");
 			return;
 		}
 		
+		if (parsedArgs.containsKey("-nio")) {
+			FTPConnection.SetReactorEnabled(true);
+		}
+		
+		if (parsedArgs.containsKey("-cachettl")) {
+			try {
+				FTPListingCache.SetDefaultTTL(Long.parseLong(parsedArgs.get("-cachettl")) * 1000);
+			} catch (NumberFormatException e) {
+				System.out.println("-cachettl must be a number of seconds");
+				return;
+			}
+		}
+		
+		if (parsedArgs.containsKey("-threads")) {
+			FTPThreads.Mode mode = FTPThreads.ParseMode(parsedArgs.get("-threads"));
+			if (mode == null) {
+				System.out.println("-threads must be one of platform, pooled or virtual");
+				return;
+			}
+			FTPThreads.SetMode(mode);
+		}
+		
+		if (parsedArgs.containsKey("-asynclog")) {
+			Shell.SetAsyncLogging(true);
+		}
+		
+		if (parsedArgs.containsKey("-loglevel")) {
+			try {
+				Shell.SetLogLevel(Level.parse(parsedArgs.get("-loglevel").toUpperCase(Locale.ROOT)));
+			} catch (IllegalArgumentException e) {
+				System.out.println("-loglevel must be a java.util.logging level, like INFO or FINE");
+				return;
+			}
+		}
+		
+		// Scripts exit with a non-zero status as soon as a command fails, for cron and friends
+		List<String> script = null;
+		if (parsedArgs.containsKey("-script")) {
+			try {
+				script = readScript(parsedArgs.get("-script"));
+			} catch (IOException e) {
+				System.out.println("Could not read script " + parsedArgs.get("-script") + ": " + e.getMessage());
+				System.exit(2);
+			}
+		} else if (parsedArgs.containsKey("-c")) {
+			script = splitCommands(parsedArgs.get("-c"));
+		}
+		
+		if (script != null) {
+			Shell.SetInteractive(false);
+		}
 		FTPShell shell = new FTPShell(parsedArgs.get("-log"));
-		shell.run();
+		if (script == null) {
+			shell.run();
+			return;
+		}
+		System.exit(shell.RunScript(script));
+	}
+	
+	// One command per line.  Blank lines and lines starting with # are skipped.
+	private static List<String> readScript(String path) throws IOException {
+		List<String> commands = new ArrayList<String>();
+		for (String line : Files.readAllLines(Paths.get(path))) {
+			line = line.trim();
+			if (!line.equals("") && !line.startsWith("#")) {
+				commands.add(line);
+			}
+		}
+		return commands;
+	}
+	
+	// "cmd; cmd; ...", leaving the ;'s inside a batch { ... } alone
+	private static List<String> splitCommands(String line) {
+		List<String> commands = new ArrayList<String>();
+		int depth = 0, start = 0;
+		for (int i = 0; i <= line.length(); i++) {
+			char c = (i < line.length()) ? line.charAt(i) : 0;
+			if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				depth--;
+			} else if ((c == ';' && depth <= 0) || i == line.length()) {
+				String command = line.substring(start, i).trim();
+				if (!command.equals("")) {
+					commands.add(command);
+				}
+				start = i + 1;
+			}
+		}
+		return commands;
 	}
 
 }
@@ -4,13 +4,23 @@ import java.util.HashSet;
 
 public class Parser {
 	public static  ParseMap Parse(String[] input, String[] flags) {
+		return Parse(input, flags, new String[0]);
+	}
+	
+	// Same as above, but the optional flags may also appear
+	public static  ParseMap Parse(String[] input, String[] flags, String[] optionalFlags) {
 		if (input.length < 2 || flags.length < 1) {
 			return null;
 		}
 		HashSet<String> requiredFlags = new HashSet<String>();
+		HashSet<String> allowedFlags = new HashSet<String>();
 		ParseMap results = new ParseMap();
 		for (String str : flags) {
 			requiredFlags.add(str);
+			allowedFlags.add(str);
+		}
+		for (String str : optionalFlags) {
+			allowedFlags.add(str);
 		}
 		
 		boolean shouldBeFlag = true;
@@ -19,8 +29,8 @@ public class Parser {
 		int tokenIdx = 0;
 		while (tokenIdx < input.length) {
 			if (shouldBeFlag) {
-				// Look for a required flag
-				if (!requiredFlags.contains(input[tokenIdx])) {
+				// Look for a known flag
+				if (!allowedFlags.contains(input[tokenIdx])) {
 					return null;
 				}
 				lastFlag = input[tokenIdx];
@@ -1,16 +1,22 @@
 package edu.dasizeman.jftp;
 
+import java.util.List;
+
 public interface ProtocolManager {
 	
 	public void Reset();
 	
 	public void ParseAndExecuteInterfaceCommand(String command) throws Throwable;
 	
+	public void Pipeline(List<String> commands) throws Throwable;
+	
 	public void ControlDataReceived(String data);
 	
 	public void DataReceived(byte[] data);
 	
-	public void TextDataReceived(String data);
+	public void DataTransferFinished();
+	
+	public void TextLineReceived(String line);
 	
 	public boolean IsReady();
 	
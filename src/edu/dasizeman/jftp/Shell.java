@@ -1,8 +1,10 @@
 package edu.dasizeman.jftp;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Scanner;
 import java.util.logging.FileHandler;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
@@ -10,11 +12,43 @@ import java.util.logging.Logger;
 import java.util.logging.StreamHandler;
 
 public abstract class Shell {
+	private static boolean asyncLogging = false;
+	private static Level logLevel = Level.ALL;
+	private static boolean interactive = true;
 	
 	private Logger logger;
 	private FileHandler logFile;
 	private StreamHandler consoleLog;
 	private SimplerFormatter simpleFormatter;
+	private AsyncLogHandler asyncLog;
+	
+	// Writes log records on a background thread instead of the thread that logged them
+	public static void SetAsyncLogging(boolean enabled) {
+		asyncLogging = enabled;
+	}
+	
+	// The most detail that goes to the log file.  Anything below it isn't even formatted.
+	public static void SetLogLevel(Level level) {
+		logLevel = level;
+	}
+	
+	// Off for scripts, where nobody is watching the console: it's flushed at the end instead
+	// of after every line
+	public static void SetInteractive(boolean enabled) {
+		interactive = enabled;
+	}
+	
+	public static boolean IsInteractive() {
+		return interactive;
+	}
+	
+	// Writes out what the log is holding on to, so that something printed straight to the
+	// console after it shows up after it
+	public static void FlushLog() {
+		for (Handler handler : Logger.getGlobal().getHandlers()) {
+			handler.flush();
+		}
+	}
 	
 	public Shell(String logPath) {
 		
@@ -30,22 +64,31 @@ public abstract class Shell {
 		}
 		
 		simpleFormatter = new SimplerFormatter();
-		consoleLog = new StreamHandler(System.out, simpleFormatter) {
-	        @Override
-	        public synchronized void publish(final LogRecord record) {
-	            super.publish(record);
-	            flush();
-	        }
-	    };
+		if (asyncLogging || !interactive) {
+			// The writer thread flushes after every batch, scripts flush when they're done
+			consoleLog = new StreamHandler(System.out, simpleFormatter);
+		} else {
+			consoleLog = new StreamHandler(System.out, simpleFormatter) {
+		        @Override
+		        public synchronized void publish(final LogRecord record) {
+		            super.publish(record);
+		            flush();
+		        }
+		    };
+		}
 		consoleLog.setLevel(Level.INFO);
 		logFile.setFormatter(simpleFormatter);
-		logFile.setLevel(Level.ALL);
-		
+		logFile.setLevel(logLevel);
 		
-		logger.addHandler(logFile);
-		logger.addHandler(consoleLog);
+		if (asyncLogging) {
+			asyncLog = new AsyncLogHandler(AsyncLogHandler.DEFAULT_CAPACITY, logFile, consoleLog);
+			logger.addHandler(asyncLog);
+		} else {
+			logger.addHandler(logFile);
+			logger.addHandler(consoleLog);
+		}
 		
-		logger.setLevel(Level.ALL);
+		logger.setLevel(logLevel.intValue() < Level.INFO.intValue() ? logLevel : Level.INFO);
 	}
 	
 	protected abstract void init();
@@ -54,6 +97,19 @@ public abstract class Shell {
 	
 	protected abstract String welcomeMessage();
 	
+	// Called after the last command, before the log is flushed
+	protected void exiting() {
+	}
+	
+	// For things that belong in the log but would only clutter the console
+	protected void logToFile(String message) {
+		if (asyncLog != null) {
+			// Keep it after what's already been logged
+			asyncLog.flush();
+		}
+		logFile.publish(new LogRecord(Level.INFO, message));
+	}
+	
 	public void run() {
 		Scanner inputScanner = new Scanner(System.in);
 		String inputString = "";
@@ -61,6 +117,10 @@ public abstract class Shell {
 		System.out.println(welcomeMessage());
 		System.out.println("Type 'help' for commands.");
 		do {
+			// Keep what the last command logged ahead of the next prompt
+			if (asyncLog != null) {
+				asyncLog.flush();
+			}
 			System.out.print(">");
 			inputString = inputScanner.nextLine(); 
 			if (inputString.equals("")) {
@@ -75,7 +135,58 @@ public abstract class Shell {
 		}while (!inputString.equals("quit"));
 		
 		inputScanner.close();
+		exiting();
+		if (asyncLog != null) {
+			asyncLog.flush();
+		}
 		System.out.println("...bye :(");
 	}
 	
+	// Runs commands without a prompt, up to a "quit" if there is one, and stops at the first
+	// one that fails.  Returns the exit status: 0 if they all worked, 1 if the server refused
+	// one, 2 if something else went wrong.
+	public int RunScript(List<String> commands) {
+		int quit = commands.indexOf("quit");
+		if (quit >= 0) {
+			commands = commands.subList(0, quit);
+		}
+		
+		int status = 0;
+		try {
+			doCommands(commands);
+		} catch (Throwable e) {
+			status = failed(e);
+		}
+		
+		// Hang up properly either way
+		try {
+			doCommand("quit");
+		} catch (Throwable e) {
+			if (status == 0) {
+				status = failed(e);
+			}
+		}
+		
+		exiting();
+		if (asyncLog != null) {
+			asyncLog.flush();
+		} else {
+			consoleLog.flush();
+		}
+		return status;
+	}
+	
+	// Runs a script's commands in order and throws the first failure.  Shells that can have
+	// several commands in flight at once override this.
+	protected void doCommands(List<String> commands) throws Throwable {
+		for (String command : commands) {
+			doCommand(command);
+		}
+	}
+	
+	private int failed(Throwable e) {
+		logger.log(Level.SEVERE, e.getClass().getName() + " : " + e.getMessage() );
+		return (e instanceof ProtocolException) ? 1 : 2;
+	}
+	
 }
@@ -1,26 +1,51 @@
 package edu.dasizeman.jftp;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 public class SimplerFormatter extends Formatter {
-    @Override
-    public String format(LogRecord record) {
-        StringBuffer log = new StringBuffer();
-        log.append("[" + 
-        		new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(record.getMillis()))
-        		+ "]");
-        log.append(" ");
-        log.append("<" + record.getLevel().getName() + ">");
-        log.append(" ");
-        //log.append("[").append(record.getSourceClassName() ?: record.getLoggerName())
-        //log.append(" ")
-        //log.append(record.getSourceMethodName() ?: " - ").append("]")
-        log.append(": ");
-        log.append(record.getMessage());
-        log.append(System.getProperty("line.separator"));
-        return log.toString();
-    }
+	// DateTimeFormatter is thread safe, unlike the SimpleDateFormat we used to make per record
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	// Most records land in the same second as the one before, so keep the last one we formatted
+	private static final class Stamp {
+		final long second;
+		final String text;
+
+		Stamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	private volatile Stamp lastStamp = new Stamp(Long.MIN_VALUE, "");
+
+	@Override
+	public String format(LogRecord record) {
+		String message = record.getMessage();
+		StringBuilder log = new StringBuilder(40 + ((message == null) ? 4 : message.length()));
+		log.append('[').append(timestamp(record.getMillis())).append(']');
+		log.append(" <").append(record.getLevel().getName()).append('>');
+		//log.append("[").append(record.getSourceClassName() ?: record.getLoggerName())
+		//log.append(" ")
+		//log.append(record.getSourceMethodName() ?: " - ").append("]")
+		log.append(" : ");
+		log.append(message);
+		log.append(LINE_SEPARATOR);
+		return log.toString();
+	}
+
+	private String timestamp(long millis) {
+		long second = Math.floorDiv(millis, 1000);
+		Stamp stamp = this.lastStamp;
+		if (stamp.second != second) {
+			stamp = new Stamp(second, TIMESTAMP.format(Instant.ofEpochSecond(second)));
+			this.lastStamp = stamp;
+		}
+		return stamp.text;
+	}
 }
\ No newline at end of file
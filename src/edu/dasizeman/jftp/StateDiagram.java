@@ -1,6 +1,43 @@
 package edu.dasizeman.jftp;
 
-import java.util.HashMap;
-
-@SuppressWarnings("serial")
-public class StateDiagram extends HashMap<FTPDiagramState, FTPState> {}
+// Where a reply leaves the state machine from WAIT, for one of the RFC 959 state diagrams.
+// It's a flat table indexed by reply code and command ordinal, so a lookup is one array read.
+// The diagrams only care about the first digit of the code, so whole classes (like 3xx) are
+// filled in at once, which also covers codes we have no FTPResponse for.
+public class StateDiagram {
+	public static final int MIN_CODE = 100;
+	public static final int MAX_CODE = 599;
+	private static final int COMMANDS = FTPCommand.values().length;
+	
+	private final FTPState[] transitions;
+	
+	public StateDiagram() {
+		this.transitions = new FTPState[(MAX_CODE - MIN_CODE + 1) * COMMANDS];
+	}
+	
+	// Sets the transition for every code starting with the digit, like 3 for 3xx
+	public void PutClass(int firstDigit, FTPCommand cmd, FTPState state) {
+		for (int code = firstDigit * 100; code < (firstDigit + 1) * 100; code++) {
+			Put(code, cmd, state);
+		}
+	}
+	
+	// Sets the transition for a single code, overriding its class
+	public void Put(int code, FTPCommand cmd, FTPState state) {
+		this.transitions[index(code, cmd)] = state;
+	}
+	
+	// Null if the diagram has no transition for the reply, and FAILURE for codes that aren't
+	// FTP reply codes at all
+	public FTPState Get(int code, FTPCommand cmd) {
+		if (code < MIN_CODE || code > MAX_CODE) {
+			return FTPState.FAILURE;
+		}
+		return this.transitions[index(code, cmd)];
+	}
+	
+	private static int index(int code, FTPCommand cmd) {
+		return (code - MIN_CODE) * COMMANDS + cmd.ordinal();
+	}
+	
+}